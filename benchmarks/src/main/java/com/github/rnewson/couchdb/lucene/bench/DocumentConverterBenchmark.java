@@ -0,0 +1,88 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.DocumentConverter;
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import org.apache.lucene.document.Document;
+import org.json.JSONObject;
+import org.mozilla.javascript.Context;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an index function over synthetic documents. Rhino contexts are bound
+ * to a thread, so each benchmark thread gets its own context and converter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentConverterBenchmark {
+
+    private static final int DOCUMENTS = 1024;
+
+    @Param({"select_fields", "index_everything"})
+    public String function;
+
+    private Context context;
+
+    private DocumentConverter converter;
+
+    private CouchDocument[] docs;
+
+    private ViewSettings settings;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        context = Context.enter();
+        context.setOptimizationLevel(9);
+        final JSONObject json = new JSONObject();
+        json.put("index", "select_fields".equals(function)
+                ? SyntheticDocuments.SELECT_FIELDS : SyntheticDocuments.INDEX_EVERYTHING);
+        converter = new DocumentConverter(context, new View(null, json));
+        docs = new CouchDocument[DOCUMENTS];
+        for (int i = 0; i < DOCUMENTS; i++) {
+            docs[i] = new CouchDocument(SyntheticDocuments.document(i));
+        }
+        settings = ViewSettings.getDefaultSettings();
+        // Guard against measuring a function that fails and indexes nothing.
+        if (converter.convert(docs[0], settings, null).isEmpty()) {
+            throw new IllegalStateException(function + " produced no documents.");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public Collection<Document> convert() throws Exception {
+        next = (next + 1) % DOCUMENTS;
+        return converter.convert(docs[next], settings, null);
+    }
+
+}
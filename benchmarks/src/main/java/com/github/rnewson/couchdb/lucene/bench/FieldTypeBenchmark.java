@@ -0,0 +1,65 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import org.apache.lucene.document.Field;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldTypeBenchmark {
+
+    @Param({"STRING", "INT", "LONG", "FLOAT", "DOUBLE", "DATE"})
+    public FieldType type;
+
+    private Object value;
+
+    private ViewSettings settings;
+
+    @Setup
+    public void setup() throws Exception {
+        switch (type) {
+            case STRING:
+                value = "lorem ipsum dolor sit amet";
+                break;
+            case DATE:
+                value = "2014-06-21T13:45:10+0000";
+                break;
+            default:
+                value = 1234;
+                break;
+        }
+        final JSONObject json = new JSONObject();
+        json.put("store", "yes");
+        settings = new ViewSettings(json);
+    }
+
+    @Benchmark
+    public Field toField() throws Exception {
+        return type.toField("field", value, settings);
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.HttpClientFactory;
+import com.github.rnewson.couchdb.lucene.LuceneServlet;
+import com.github.rnewson.couchdb.lucene.couchdb.DocumentGenerator;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch.StubDatabase;
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a LuceneServlet over HTTP against a StubCouch full of synthetic
+ * documents and reports indexing throughput and query latency percentiles.
+ * <p/>
+ * Options are given as name=value arguments;
+ * <pre>
+ * docs=100000        number of documents to index
+ * generator=invoices invoices or attachments
+ * clients=8          concurrent query clients
+ * queries=10000      total number of queries
+ * stale=false        pass stale=ok with every query
+ * q=a,b,c            queries to cycle through, separated by commas
+ * lucene.*           any couchdb-lucene setting, e.g. lucene.batchSize=1000
+ * </pre>
+ */
+public final class LoadTest {
+
+    private static final String[] DEFAULT_QUERIES = {"lorem", "ipsum dolor", "title:magna AND category:invoice",
+            "price<int>:[100 TO 200]", "created<date>:[2014-03-01 TO 2014-04-01]", "tempor -labore"};
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>();
+        options.put("docs", "100000");
+        options.put("generator", "invoices");
+        options.put("clients", "8");
+        options.put("queries", "10000");
+        options.put("stale", "false");
+        for (final String arg : args) {
+            final String[] kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.err.println("Expected name=value but found " + arg);
+                System.exit(1);
+            }
+            options.put(kv[0], kv[1]);
+        }
+
+        final int docs = Integer.parseInt(options.get("docs"));
+        final DocumentGenerator generator;
+        final String function;
+        switch (options.get("generator")) {
+            case "invoices":
+                generator = SyntheticDocuments.INVOICES;
+                function = SyntheticDocuments.SELECT_FIELDS;
+                break;
+            case "attachments":
+                generator = SyntheticDocuments.INVOICES_WITH_ATTACHMENTS;
+                function = SyntheticDocuments.INDEX_ATTACHMENTS;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown generator " + options.get("generator"));
+        }
+
+        final StubCouch couch = new StubCouch(0);
+        couch.start();
+        final StubDatabase db = couch.createDatabase("loadtest");
+        final JSONObject view = new JSONObject().put("index", function);
+        db.put(new JSONObject().put("_id", "_design/load").put("fulltext", new JSONObject().put("view", view)));
+        System.out.printf("generating %d documents%n", docs);
+        db.generate(generator, 0, docs);
+
+        final File root = Files.createTempDirectory("couchdb-lucene-load").toFile();
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("local.url", couch.getUrl());
+        for (final Map.Entry<String, String> option : options.entrySet()) {
+            if (option.getKey().startsWith("lucene.")) {
+                ini.setProperty(option.getKey(), option.getValue());
+            }
+        }
+        final HttpClient client = HttpClientFactory.getInstance();
+        final Server server = new Server();
+        final SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(new LuceneServlet(client, root, ini)), "/*");
+        server.setHandler(context);
+        server.start();
+
+        try {
+            final String url = "http://localhost:" + connector.getLocalPort() + "/local/loadtest/_design/load/view";
+
+            // Indexing; a non-stale search only answers once the index has caught up.
+            final long indexStart = System.nanoTime();
+            while (true) {
+                final String body = get(client, url + "?limit=1&q=" + Utils.urlEncode("*:*"));
+                if (body != null && new JSONObject(body).getInt("total_rows") > docs) {
+                    break;
+                }
+                Thread.sleep(10);
+            }
+            final double indexSeconds = (System.nanoTime() - indexStart) / 1e9;
+            System.out.printf("indexed %d documents in %.1f s, %.0f docs/s%n", docs, indexSeconds, docs / indexSeconds);
+
+            // Querying.
+            final String[] queries = options.containsKey("q") ? Utils.splitOnCommas(options.get("q")) : DEFAULT_QUERIES;
+            final String suffix = Boolean.parseBoolean(options.get("stale")) ? "&stale=ok" : "";
+            final int clients = Integer.parseInt(options.get("clients"));
+            final int total = Integer.parseInt(options.get("queries"));
+            final long[] latencies = new long[total];
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicLong errors = new AtomicLong();
+            final ExecutorService executor = Executors.newFixedThreadPool(clients);
+            final List<Future<?>> futures = new ArrayList<>();
+            final long queryStart = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    public Void call() throws Exception {
+                        int n;
+                        while ((n = next.getAndIncrement()) < total) {
+                            final String q = queries[n % queries.length];
+                            final long start = System.nanoTime();
+                            if (get(client, url + "?q=" + Utils.urlEncode(q) + suffix) == null) {
+                                errors.incrementAndGet();
+                            }
+                            latencies[n] = System.nanoTime() - start;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+            final double querySeconds = (System.nanoTime() - queryStart) / 1e9;
+
+            Arrays.sort(latencies);
+            System.out.printf("ran %d queries on %d clients in %.1f s, %.0f queries/s, %d errors%n",
+                    total, clients, querySeconds, total / querySeconds, errors.get());
+            System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                    percentile(latencies, 99.9), percentile(latencies, 100));
+            System.out.printf("couchdb requests: changes=%d all_docs=%d doc=%d attachment=%d%n",
+                    couch.getRequestCount("changes"), couch.getRequestCount("all_docs"),
+                    couch.getRequestCount("doc"), couch.getRequestCount("attachment"));
+        } finally {
+            server.stop();
+            couch.stop();
+            FileUtils.deleteDirectory(root);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The response body, or null for any non-200 response.
+     */
+    private static String get(final HttpClient client, final String url) throws Exception {
+        final HttpResponse response = client.execute(new HttpGet(url));
+        final String body = EntityUtils.toString(response.getEntity());
+        return response.getStatusLine().getStatusCode() == 200 ? body : null;
+    }
+
+    private static double percentile(final long[] sorted, final double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.CustomQueryParser;
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParserBenchmark {
+
+    @Param({
+            "lorem",
+            "title:lorem AND body:(ipsum OR dolor) -category:refund",
+            "price<int>:[100 TO 500]",
+            "created<date>:[2014-01-01 TO 2014-06-30] AND title:lor*"})
+    public String query;
+
+    @Benchmark
+    public Query parse() throws Exception {
+        // A parser is not thread-safe, so the server builds one per query.
+        final QueryParser parser = new CustomQueryParser(Constants.VERSION,
+                Constants.DEFAULT_FIELD, Constants.ANALYZER);
+        return parser.parse(query);
+    }
+
+}
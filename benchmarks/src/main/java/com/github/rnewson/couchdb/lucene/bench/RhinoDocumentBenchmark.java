@@ -0,0 +1,88 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import com.github.rnewson.couchdb.lucene.rhino.RhinoDocument;
+import org.apache.lucene.document.Document;
+import org.json.JSONObject;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning the fields an index function added into a Lucene
+ * document, without the cost of running the function itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RhinoDocumentBenchmark {
+
+    private RhinoDocument doc;
+
+    private ViewSettings settings;
+
+    @Setup
+    public void setup() throws Exception {
+        final Context context = Context.enter();
+        final ScriptableObject scope = context.initStandardObjects();
+        final JSONObject source = SyntheticDocuments.document(42);
+
+        doc = new RhinoDocument();
+        add(context, source.getString("title"), settings(context, scope, "field", "title", "store", "yes"));
+        add(context, source.getString("body"), null);
+        add(context, source.getString("category"),
+                settings(context, scope, "field", "category", "index", "not_analyzed", "store", "yes"));
+        add(context, source.getInt("price"), settings(context, scope, "field", "price", "type", "int", "store", "yes"));
+        add(context, source.getString("created"), settings(context, scope, "field", "created", "type", "date"));
+        for (int i = 0; i < 3; i++) {
+            add(context, source.getJSONArray("tags").getString(i), settings(context, scope, "field", "tags"));
+        }
+        settings = ViewSettings.getDefaultSettings();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public Document toDocument() throws Exception {
+        return doc.toDocument(SyntheticDocuments.id(42), settings, null);
+    }
+
+    private void add(final Context context, final Object value, final NativeObject settings) {
+        final Object[] args = settings == null ? new Object[]{value} : new Object[]{value, settings};
+        RhinoDocument.jsFunction_add(context, doc, args, null);
+    }
+
+    private static NativeObject settings(final Context context, final ScriptableObject scope, final String... keyValues) {
+        final NativeObject result = (NativeObject) context.newObject(scope);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            result.put(keyValues[i], result, keyValues[i + 1]);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.DatabaseIndexer;
+import com.github.rnewson.couchdb.lucene.HttpClientFactory;
+import com.github.rnewson.couchdb.lucene.SearchPool;
+import com.github.rnewson.couchdb.lucene.WorkerPool;
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch.StubDatabase;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end search against an index built from synthetic documents fed
+ * through the normal changes loop of a DatabaseIndexer, with an in-process
+ * StubCouch standing in for CouchDB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final String PATH = "/local/db/_design/bench/text";
+
+    @Param({"10000"})
+    public int documents;
+
+    @Param({"lorem", "title:lorem AND category:invoice", "price<int>:[100 TO 500]"})
+    public String q;
+
+    @Param({"false", "true"})
+    public boolean include_docs;
+
+    @Param({"ok", "update"})
+    public String stale;
+
+    private File root;
+
+    private StubCouch couch;
+
+    private DatabaseIndexer indexer;
+
+    private SearchPool searchPool;
+
+    private WorkerPool workerPool;
+
+    private Thread thread;
+
+    private Map<String, String> params;
+
+    @Setup
+    public void setup() throws Exception {
+        final JSONObject view = new JSONObject();
+        view.put("index", SyntheticDocuments.SELECT_FIELDS);
+        final JSONObject ddoc = new JSONObject();
+        ddoc.put("_id", "_design/bench");
+        ddoc.put("fulltext", new JSONObject().put("text", view));
+
+        couch = new StubCouch(0);
+        couch.start();
+        final StubDatabase db = couch.createDatabase("db");
+        db.put(ddoc);
+        db.generate(SyntheticDocuments.INVOICES, 0, documents);
+
+        root = Files.createTempDirectory("couchdb-lucene-bench").toFile();
+        final Database database = new Database(HttpClientFactory.getInstance(), couch.getUrl(), "db");
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        searchPool = new SearchPool(ini);
+        workerPool = new WorkerPool(ini);
+        indexer = new DatabaseIndexer(HttpClientFactory.getInstance(), root, database, ini, searchPool, workerPool);
+        thread = new Thread(indexer, "bench-indexer");
+        thread.start();
+        indexer.awaitInitialization();
+        awaitIndexed();
+
+        params = new HashMap<>();
+        params.put("q", q);
+        params.put("include_docs", Boolean.toString(include_docs));
+        params.put("stale", stale);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        couch.stop();
+        thread.join();
+        searchPool.shutdown();
+        workerPool.shutdown();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Benchmark
+    public String search() throws Exception {
+        final Servlets.Response resp = Servlets.response();
+        indexer.search(Servlets.request(PATH, params), resp.get());
+        if (resp.getStatus() != 200) {
+            throw new IllegalStateException(resp.getBody());
+        }
+        return resp.getBody();
+    }
+
+    private void awaitIndexed() throws Exception {
+        final long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+        while (System.currentTimeMillis() < deadline) {
+            final Servlets.Response resp = Servlets.response();
+            indexer.info(Servlets.request(PATH, new HashMap<String, String>()), resp.get());
+            // The design document is indexed too.
+            if (resp.getStatus() == 200 && new JSONObject(resp.getBody()).getInt("doc_count") > documents) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("gave up waiting for " + documents + " documents to be indexed");
+    }
+
+}
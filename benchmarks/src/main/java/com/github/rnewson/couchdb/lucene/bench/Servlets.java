@@ -0,0 +1,112 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Minimal in-memory servlet request and response, enough to call the
+ * DatabaseIndexer endpoints directly.
+ */
+public final class Servlets {
+
+    private Servlets() {
+    }
+
+    public static HttpServletRequest request(final String uri, final Map<String, String> params) {
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new InvocationHandler() {
+
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        switch (method.getName()) {
+                            case "getRequestURI":
+                                return uri;
+                            case "getParameter":
+                                return params.get(args[0]);
+                            case "getMethod":
+                                return "GET";
+                            default:
+                                return defaultValue(method);
+                        }
+                    }
+                });
+    }
+
+    public static Response response() {
+        return new Response();
+    }
+
+    public static final class Response implements InvocationHandler {
+
+        private final StringWriter body = new StringWriter();
+
+        private final PrintWriter writer = new PrintWriter(body);
+
+        private int status = 200;
+
+        public HttpServletResponse get() {
+            return (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, this);
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getBody() {
+            writer.flush();
+            return body.toString();
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws IOException {
+            switch (method.getName()) {
+                case "getWriter":
+                    return writer;
+                case "setStatus":
+                case "sendError":
+                    status = (Integer) args[0];
+                    return null;
+                default:
+                    return defaultValue(method);
+            }
+        }
+
+    }
+
+    private static Object defaultValue(final Method method) {
+        final Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.couchdb.DocumentGenerator;
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Deterministic, moderately realistic documents for benchmarking.
+ */
+public final class SyntheticDocuments {
+
+    public static final String[] WORDS = {"lorem", "ipsum", "dolor", "sit", "amet", "consectetur",
+            "adipiscing", "elit", "sed", "do", "eiusmod", "tempor", "incididunt", "ut", "labore", "et",
+            "dolore", "magna", "aliqua", "enim", "ad", "minim", "veniam", "quis", "nostrud",
+            "exercitation", "ullamco", "laboris", "nisi", "aliquip", "ex", "ea", "commodo", "consequat"};
+
+    public static final String[] CATEGORIES = {"invoice", "receipt", "order", "refund", "quote"};
+
+    /**
+     * An index function that picks a handful of fields, the common case.
+     */
+    public static final String SELECT_FIELDS = "function(doc) { var ret = new Document();"
+            + " ret.add(doc.title, {field: 'title', store: 'yes'});"
+            + " ret.add(doc.body);"
+            + " ret.add(doc.category, {field: 'category', index: 'not_analyzed', store: 'yes'});"
+            + " ret.add(doc.price, {field: 'price', type: 'int', store: 'yes'});"
+            + " ret.add(doc.created, {field: 'created', type: 'date'});"
+            + " return ret; }";
+
+    /**
+     * The "index everything" function from the README.
+     */
+    public static final String INDEX_EVERYTHING = "function(doc) { var ret = new Document();"
+            + " function idx(obj) { for (var key in obj) { switch (typeof obj[key]) {"
+            + " case 'object': idx(obj[key]); break; case 'function': break;"
+            + " default: ret.add(obj[key]); break; } } };"
+            + " idx(doc); return ret; }";
+
+    /**
+     * Indexes a title and a plain text attachment, which goes through Tika.
+     */
+    public static final String INDEX_ATTACHMENTS = "function(doc) { var ret = new Document();"
+            + " ret.add(doc.title, {field: 'title', store: 'yes'});"
+            + " ret.attachment('default', 'note.txt');"
+            + " return ret; }";
+
+    public static final DocumentGenerator INVOICES = new DocumentGenerator() {
+
+        public JSONObject generate(final int n) {
+            return document(n);
+        }
+    };
+
+    public static final DocumentGenerator INVOICES_WITH_ATTACHMENTS = new DocumentGenerator() {
+
+        public JSONObject generate(final int n) throws JSONException {
+            final JSONObject result = document(n);
+            final JSONObject note = new JSONObject();
+            note.put("content_type", "text/plain");
+            note.put("data", Base64.encodeBase64String(words(new Random(-n), 200).getBytes(StandardCharsets.UTF_8)));
+            result.put("_attachments", new JSONObject().put("note.txt", note));
+            return result;
+        }
+    };
+
+    public static String id(final int i) {
+        return String.format("doc-%08d", i);
+    }
+
+    public static JSONObject document(final int i) {
+        final Random random = new Random(i);
+        try {
+            final JSONObject result = new JSONObject();
+            result.put("_id", id(i));
+            result.put("_rev", "1-" + Integer.toHexString(random.nextInt()));
+            result.put("title", words(random, 5));
+            result.put("body", words(random, 80));
+            result.put("category", CATEGORIES[random.nextInt(CATEGORIES.length)]);
+            result.put("price", random.nextInt(1000));
+            result.put("created", String.format("2014-%02d-%02d", 1 + random.nextInt(12), 1 + random.nextInt(28)));
+            final JSONArray tags = new JSONArray();
+            for (int t = 0; t < 3; t++) {
+                tags.put(WORDS[random.nextInt(WORDS.length)]);
+            }
+            result.put("tags", tags);
+            final JSONObject customer = new JSONObject();
+            customer.put("name", words(random, 2));
+            customer.put("country", random.nextBoolean() ? "KE" : "NG");
+            result.put("customer", customer);
+            return result;
+        } catch (final JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String words(final Random random, final int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.bench;
+
+import com.github.rnewson.couchdb.lucene.couchdb.UpdateSequence;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateSequenceBenchmark {
+
+    private static final String PACKED = "g1AAAAGbeJzLYWBg4MhgTmEQT8pMT84vTc5wMDQ30jM00zO0BG"
+            + "JjgxygAqZEhiT5____ZyUxMKi1EVSdpAAkk-yhGtRdCWtwAGmIh9lwi7CGBJCGepgN0gQ"
+            + "15LEASYYGIAXUMx-syYlITQsgmvaDneZDpKYDEE33wZpOE6npAUQTJBA6sgABPG9K";
+
+    @Param({"couchdb", "bigcouch", "couchdb2"})
+    public String flavour;
+
+    private String seq;
+
+    private UpdateSequence other;
+
+    @Setup
+    public void setup() {
+        switch (flavour) {
+            case "couchdb":
+                seq = "79521";
+                break;
+            case "bigcouch":
+                seq = "79521-" + PACKED;
+                break;
+            case "couchdb2":
+                seq = "[79521,\"" + PACKED + "\"]";
+                break;
+            default:
+                throw new IllegalArgumentException(flavour);
+        }
+        other = UpdateSequence.parseUpdateSequence(seq);
+    }
+
+    @Benchmark
+    public UpdateSequence parse() {
+        return UpdateSequence.parseUpdateSequence(seq);
+    }
+
+    @Benchmark
+    public boolean parseAndCompare() {
+        return UpdateSequence.parseUpdateSequence(seq).isLaterThan(other);
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An opaque token for the last row of a page of search results. Passing it
+ * back resumes the search after that row with searchAfter, so deep pages
+ * cost no more than the first. It records the reader version the row came
+ * from; document ids only break ties between equal rows, so a page read
+ * from a later version may repeat or miss rows that tie exactly.
+ *
+ * @author rnewson
+ */
+public final class Bookmark {
+
+    private final long version;
+
+    private final ScoreDoc after;
+
+    private Bookmark(final long version, final ScoreDoc after) {
+        this.version = version;
+        this.after = after;
+    }
+
+    public static String encode(final ScoreDoc last, final long version) {
+        try {
+            final JSONObject json = new JSONObject();
+            json.put("v", version);
+            json.put("d", last.doc);
+            if (!Float.isNaN(last.score)) {
+                json.put("s", (double) last.score);
+            }
+            if (last instanceof FieldDoc) {
+                final JSONArray fields = new JSONArray();
+                for (final Object field : ((FieldDoc) last).fields) {
+                    fields.put(field instanceof BytesRef ? ((BytesRef) field).utf8ToString() : field);
+                }
+                json.put("f", fields);
+            }
+            return Base64.encodeBase64URLSafeString(json.toString().getBytes("UTF-8"));
+        } catch (final JSONException e) {
+            throw new IllegalArgumentException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new Error("UTF-8 support missing.");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the token is not a bookmark for
+     *                                  this sort order.
+     */
+    public static Bookmark decode(final String token, final Sort sort) {
+        try {
+            final JSONObject json = new JSONObject(new String(Base64.decodeBase64(token), "UTF-8"));
+            final int doc = json.getInt("d");
+            final float score = (float) json.optDouble("s", Double.NaN);
+            final JSONArray fields = json.optJSONArray("f");
+            final ScoreDoc after;
+            if (sort == null) {
+                if (fields != null) {
+                    throw new IllegalArgumentException("bookmark is for a sorted search");
+                }
+                after = new ScoreDoc(doc, score);
+            } else {
+                final SortField[] sortFields = sort.getSort();
+                if (fields == null || fields.length() != sortFields.length) {
+                    throw new IllegalArgumentException("bookmark is for a different sort order");
+                }
+                final Object[] values = new Object[sortFields.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = toValue(sortFields[i].getType(), fields, i);
+                }
+                after = new FieldDoc(doc, score, values);
+            }
+            return new Bookmark(json.getLong("v"), after);
+        } catch (final JSONException e) {
+            throw new IllegalArgumentException("malformed bookmark", e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new Error("UTF-8 support missing.");
+        }
+    }
+
+    /**
+     * The version of a reader from a SearcherManager or a
+     * ShardedSearcherManager.
+     */
+    public static long getVersion(final IndexReader reader) {
+        long result = 0;
+        for (final DirectoryReader shard : ShardedSearcherManager.getShardReaders(reader)) {
+            result += shard.getVersion();
+        }
+        return result;
+    }
+
+    public ScoreDoc getAfter() {
+        return after;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private static Object toValue(final SortField.Type type, final JSONArray fields, final int i)
+            throws JSONException {
+        if (fields.isNull(i)) {
+            return null;
+        }
+        switch (type) {
+            case SCORE:
+            case FLOAT:
+                return (float) fields.getDouble(i);
+            case DOC:
+            case INT:
+                return fields.getInt(i);
+            case LONG:
+                return fields.getLong(i);
+            case DOUBLE:
+                return fields.getDouble(i);
+            case STRING:
+                return new BytesRef(fields.getString(i));
+            default:
+                throw new IllegalArgumentException("cannot resume a sort on " + type);
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Counter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A searcher for one search, over the reader of a shared searcher. Every
+ * slice of segments is collected through the search's Cancellation and,
+ * with a timeout, a TimeLimitingCollector, whether the slices run on the
+ * search pool or on the calling thread. A slice that runs out of time
+ * keeps the hits it found, so the search returns partial results. A slice
+ * whose client has gone away stops quietly; callers check the Cancellation
+ * once the search returns.
+ *
+ * @author rnewson
+ */
+public final class CancellableSearcher extends IndexSearcher {
+
+    private final boolean pooled;
+
+    private final Cancellation cancellation;
+
+    private final long timeout;
+
+    private final Counter clock = TimeLimitingCollector.getGlobalCounter();
+
+    private final long baseline = clock.get();
+
+    private volatile boolean timedOut;
+
+    /**
+     * @param executor the pool to search slices on, or null for the
+     *                 calling thread.
+     * @param timeout  the milliseconds the search may spend collecting
+     *                 hits, from now, or 0 for no limit.
+     */
+    public CancellableSearcher(final IndexReader reader, final ExecutorService executor,
+                               final Cancellation cancellation, final long timeout) {
+        super(reader, executor);
+        this.pooled = executor != null;
+        this.cancellation = cancellation;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return whether any slice ran out of time.
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * The calling thread waits for the pool here, so the slices probe the
+     * client in its place.
+     */
+    @Override
+    protected TopDocs search(final Weight weight, final ScoreDoc after, final int nDocs)
+            throws IOException {
+        if (!pooled) {
+            return super.search(weight, after, nDocs);
+        }
+        cancellation.share();
+        try {
+            return super.search(weight, after, nDocs);
+        } finally {
+            cancellation.stopSharing();
+        }
+    }
+
+    @Override
+    protected TopFieldDocs search(final Weight weight, final FieldDoc after, final int nDocs,
+                                  final Sort sort, final boolean fillFields,
+                                  final boolean doDocScores, final boolean doMaxScore)
+            throws IOException {
+        if (!pooled) {
+            return super.search(weight, after, nDocs, sort, fillFields, doDocScores, doMaxScore);
+        }
+        cancellation.share();
+        try {
+            return super.search(weight, after, nDocs, sort, fillFields, doDocScores, doMaxScore);
+        } finally {
+            cancellation.stopSharing();
+        }
+    }
+
+    @Override
+    protected void search(final List<AtomicReaderContext> leaves, final Weight weight,
+                          final Collector collector) throws IOException {
+        Collector wrapped = cancellation.wrap(collector);
+        if (timeout > 0) {
+            final TimeLimitingCollector limited = new TimeLimitingCollector(wrapped, clock, timeout);
+            limited.setBaseline(baseline);
+            wrapped = limited;
+        }
+        try {
+            super.search(leaves, weight, wrapped);
+        } catch (final TimeLimitingCollector.TimeExceededException e) {
+            timedOut = true;
+        } catch (final Cancellation.CancelledException e) {
+            // Reported by the caller's next check.
+        }
+    }
+
+}
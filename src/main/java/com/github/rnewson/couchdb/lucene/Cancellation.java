@@ -0,0 +1,168 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Whether the client of a search has gone away. A servlet only learns
+ * that when writing to the client fails, so while a search is busy the
+ * thread that owns the response writes a space, which JSON ignores
+ * between tokens, at most once per interval. Other threads, such as those
+ * fetching documents, only see the outcome, except while the owner shares
+ * probing with the threads searching segments on its behalf.
+ *
+ * @author rnewson
+ */
+public final class Cancellation {
+
+    /**
+     * Thrown to abandon the work of a search whose client has gone.
+     */
+    public static final class CancelledException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private CancelledException() {
+            super("client disconnected");
+        }
+    }
+
+    // Hits collected between checks.
+    private static final int CHECK_EVERY = 1024;
+
+    private final Writer out;
+
+    private final Thread owner = Thread.currentThread();
+
+    private final long interval;
+
+    private long lastProbe = System.nanoTime();
+
+    // Whether any thread may probe, while the owner waits on others.
+    private boolean shared;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param out      the response, which must already be started.
+     * @param interval the milliseconds between writes to the client.
+     */
+    public Cancellation(final Writer out, final long interval) {
+        this.out = out;
+        this.interval = MILLISECONDS.toNanos(interval);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancelledException if the client has gone away.
+     */
+    public void check() {
+        if (!cancelled) {
+            probe();
+        }
+        if (cancelled) {
+            throw new CancelledException();
+        }
+    }
+
+    /**
+     * Lets every thread probe the client until stopSharing() is called. The
+     * owner must not write to the response in between.
+     */
+    public synchronized void share() {
+        shared = true;
+    }
+
+    /**
+     * Waits for a probe in progress on another thread, so the owner can
+     * write to the response again.
+     */
+    public synchronized void stopSharing() {
+        shared = false;
+    }
+
+    /**
+     * Wraps a collector that gives up when the client has gone away. Unless
+     * it runs on the owning thread, or probing is shared, it only notices
+     * once the owner has probed.
+     */
+    public Collector wrap(final Collector collector) {
+        return new Collector() {
+
+            private int count;
+
+            @Override
+            public void setScorer(final Scorer scorer) throws IOException {
+                collector.setScorer(scorer);
+            }
+
+            @Override
+            public void collect(final int doc) throws IOException {
+                if (++count % CHECK_EVERY == 0) {
+                    check();
+                }
+                collector.collect(doc);
+            }
+
+            @Override
+            public void setNextReader(final AtomicReaderContext context) throws IOException {
+                check();
+                collector.setNextReader(context);
+            }
+
+            @Override
+            public boolean acceptsDocsOutOfOrder() {
+                return collector.acceptsDocsOutOfOrder();
+            }
+        };
+    }
+
+    private synchronized void probe() {
+        if (Thread.currentThread() != owner && !shared) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (now - lastProbe < interval) {
+            return;
+        }
+        lastProbe = now;
+        try {
+            out.write(' ');
+            // Servlet writers report failures here rather than throwing.
+            if (out instanceof PrintWriter) {
+                cancelled = ((PrintWriter) out).checkError();
+            } else {
+                out.flush();
+            }
+        } catch (final IOException | RuntimeException e) {
+            cancelled = true;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Script;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts documents for one view on any thread that has entered a Rhino
+ * context. The index function is compiled once and each thread binds it to
+ * its own scope the first time it converts a document.
+ *
+ * @author rnewson
+ */
+public final class ConverterPool {
+
+    private static final Logger LOG = Logger.getLogger(ConverterPool.class);
+
+    private final Script script;
+
+    private final ThreadLocal<DocumentConverter> converters = new ThreadLocal<>();
+
+    private final AtomicLong conversions = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    public ConverterPool(final View view) throws JSONException {
+        final Context context = Context.enter();
+        try {
+            context.setLanguageVersion(Context.VERSION_1_8);
+            context.setOptimizationLevel(9);
+            this.script = view.compileScript(context);
+        } catch (final RhinoException e) {
+            LOG.error("View code for " + view + " does not compile.");
+            throw e;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    public Collection<Document> convert(
+            final CouchDocument doc,
+            final ViewSettings defaults,
+            final Database database) throws IOException, ParseException, JSONException {
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final Collection<Document> result = getConverter().convert(doc, defaults, database);
+            success = true;
+            return result;
+        } finally {
+            nanos.addAndGet(System.nanoTime() - start);
+            conversions.incrementAndGet();
+            if (!success) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    public long getConversions() {
+        return conversions.get();
+    }
+
+    public JSONObject getStats() throws JSONException {
+        final JSONObject result = new JSONObject();
+        final long count = conversions.get();
+        final long elapsed = nanos.get();
+        result.put("conversions", count);
+        result.put("conversion_errors", errors.get());
+        result.put("conversion_millis", elapsed / 1000000);
+        result.put("conversions_per_thread_second", elapsed == 0 ? 0 : count * 1000000000L / elapsed);
+        return result;
+    }
+
+    private DocumentConverter getConverter() {
+        DocumentConverter result = converters.get();
+        if (result == null) {
+            final Context context = Context.getCurrentContext();
+            if (context == null) {
+                throw new IllegalStateException(Thread.currentThread() + " has not entered a Rhino context.");
+            }
+            result = new DocumentConverter(context, script);
+            converters.set(result);
+        }
+        return result;
+    }
+
+}
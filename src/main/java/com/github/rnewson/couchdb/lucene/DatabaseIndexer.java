@@ -30,19 +30,20 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
+import org.apache.lucene.queries.BooleanFilter;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.queryparser.classic.QueryParser.Operator;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.vectorhighlight.FastVectorHighlighter;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.SingleInstanceLockFactory;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.mozilla.javascript.ClassShutter;
-import org.mozilla.javascript.Context;
+import org.json.JSONTokener;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -50,94 +51,411 @@ import java.io.*;
 import java.net.SocketException;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
     private class IndexState {
 
-        private final DocumentConverter converter;
-        private boolean readerDirty;
+        private final ConverterPool converters;
+        private final Shard[] shards;
         private String etag;
 
         private final Analyzer analyzer;
         private UpdateSequence pending_seq;
-        private DirectoryReader reader;
-        private final IndexWriter writer;
+        private final ReferenceManager<IndexSearcher> manager;
         private final Database database;
         private final View view;
+        private final List<String> sourcePaths;
 
-        public IndexState(final DocumentConverter converter,
-                          final IndexWriter writer, final Analyzer analyzer,
-                          final Database database, final View view) {
-            this.converter = converter;
-            this.writer = writer;
-            this.analyzer = analyzer;
+        // Writes bump dirtyGeneration, refreshes catch refreshedGeneration up.
+        private final AtomicLong dirtyGeneration = new AtomicLong();
+        private volatile long refreshedGeneration;
+
+        private long lastConversions;
+
+        private final AtomicLong refreshes = new AtomicLong();
+        private final AtomicLong borrows = new AtomicLong();
+        private final AtomicLong cachedBorrows = new AtomicLong();
+
+        private final ResultCache results = new ResultCache(getResultCacheSize());
+
+        // Filters by query, least recently used first. Each caches its
+        // matches per segment core, so they outlive refreshes.
+        private final LinkedHashMap<Query, CachingWrapperFilter> filters = new LinkedHashMap<>(16, 0.75f, true);
+        private final AtomicLong filterHits = new AtomicLong();
+        private final AtomicLong filterMisses = new AtomicLong();
+
+        // Parsed queries by analyzer, operator and query string, least
+        // recently used first.
+        private final LinkedHashMap<String, Query> parsed = new LinkedHashMap<>(16, 0.75f, true);
+        private final AtomicLong parseHits = new AtomicLong();
+        private final AtomicLong parseMisses = new AtomicLong();
+
+        private final ConcurrentMap<String, QueryTemplate> templates = new ConcurrentHashMap<>();
+
+        public IndexState(final ConverterPool converters, final Shard[] shards,
+                          final Database database, final View view) throws IOException, JSONException {
+            this.converters = converters;
+            this.shards = shards;
             this.database = database;
             this.view = view;
+            this.sourcePaths = view.getSourcePaths();
+            this.etag = newEtag();
+            if (shards.length == 1) {
+                this.manager = new SearcherManager(shards[0].writer, true, searchPool.getSearcherFactory());
+            } else {
+                final IndexWriter[] writers = new IndexWriter[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                    writers[i] = shards[i].writer;
+                }
+                this.manager = new ShardedSearcherManager(writers, searchPool.getSearcherFactory());
+            }
+            this.manager.addListener(new ReferenceManager.RefreshListener() {
+
+                public void beforeRefresh() {
+                }
+
+                public void afterRefresh(final boolean didRefresh) {
+                    if (didRefresh) {
+                        refreshes.incrementAndGet();
+                        results.clear();
+                        setEtag(newEtag());
+                    }
+                }
+            });
+            // Last, so it is only held by a state that will be closed.
+            this.analyzer = view.acquireAnalyzer();
         }
 
-        public synchronized DirectoryReader borrowReader(final boolean staleOk)
+        public IndexSearcher borrowSearcher(final boolean staleOk)
                 throws IOException, JSONException {
             blockForLatest(staleOk);
-            if (reader == null) {
-                etag = newEtag();
+            borrows.incrementAndGet();
+            if (!staleOk && isReaderDirty()) {
+                refresh();
+            } else {
+                cachedBorrows.incrementAndGet();
+            }
+            return manager.acquire();
+        }
+
+        public void returnSearcher(final IndexSearcher searcher)
+                throws IOException {
+            manager.release(searcher);
+        }
+
+        private void markReaderDirty() {
+            dirtyGeneration.incrementAndGet();
+        }
+
+        private boolean isReaderDirty() {
+            return refreshedGeneration < dirtyGeneration.get();
+        }
+
+        /**
+         * Brings the shared searcher up to date with every write made before
+         * this call. Searchers already handed out are unaffected and callers
+         * of acquire() never wait on this.
+         */
+        private void refresh() throws IOException {
+            final long target = dirtyGeneration.get();
+            manager.maybeRefreshBlocking();
+            synchronized (this) {
+                refreshedGeneration = max(refreshedGeneration, target);
             }
+        }
 
-            if (reader != null) {
-                reader.decRef();
+        /**
+         * Converts the batch on the shared conversion threads and queues one
+         * task on each shard's lane to write its part of it. Lanes run their
+         * tasks in order and pending_seq only moves once every shard has
+         * written the batch, so it only ever moves forward and always lands
+         * on a batch boundary even though conversions may finish out of order.
+         */
+        private void apply(final List<Change> changes) {
+            final UpdateSequence last = changes.get(changes.size() - 1).seq;
+            if (!last.isLaterThan(getPendingSequence())) {
+                return;
             }
-            reader = DirectoryReader.open(writer, !staleOk);
-            if (readerDirty) {
-                etag = newEtag();
-                readerDirty = false;
+            final List<Future<Collection<Document>>> docs = new ArrayList<>(changes.size());
+            for (final Change change : changes) {
+                if (change.doc.isDeleted() || !change.seq.isLaterThan(getPendingSequence())) {
+                    docs.add(null);
+                    continue;
+                }
+                docs.add(workerPool.convert(new Callable<Collection<Document>>() {
+
+                    public Collection<Document> call() throws Exception {
+                        if (closed) {
+                            // Nothing will write it once the lanes are shut down.
+                            return Collections.emptyList();
+                        }
+                        final Collection<Document> result = converters.convert(
+                                change.doc, view.getDefaultSettings(), database);
+                        if (sourcePaths != null) {
+                            StoredSource.add(result, change.doc.asJson(), sourcePaths);
+                        }
+                        documentCache.addRevision(result, change.doc);
+                        return result;
+                    }
+                }));
             }
+            final AtomicInteger remaining = new AtomicInteger(shards.length);
+            for (final Shard shard : shards) {
+                shard.lane.execute(new Runnable() {
+
+                    public void run() {
+                        if (failure != null) {
+                            // An earlier batch was not written; nothing after it may be.
+                            return;
+                        }
+                        try {
+                            for (int i = 0; i < changes.size(); i++) {
+                                final Change change = changes.get(i);
+                                if (getShard(change.id) != shard || !change.seq.isLaterThan(shard.written)) {
+                                    continue;
+                                }
+                                final Term term = new Term("_id", change.id);
+                                if (change.doc.isDeleted()) {
+                                    shard.writer.deleteDocuments(term);
+                                    continue;
+                                }
+                                final Collection<Document> converted;
+                                try {
+                                    converted = docs.get(i).get();
+                                } catch (final ExecutionException e) {
+                                    logger.warn(change.id + " caused " + e.getCause().getMessage());
+                                    continue;
+                                }
+                                try {
+                                    shard.writer.updateDocuments(term, converted, analyzer);
+                                } catch (final AlreadyClosedException e) {
+                                    throw e;
+                                } catch (final RuntimeException e) {
+                                    // Such as a term too long to index; only this document is lost.
+                                    logger.warn(change.id + " caused " + e.getMessage());
+                                }
+                            }
+                            shard.written = last;
+                            if (remaining.decrementAndGet() == 0) {
+                                markReaderDirty();
+                                setPendingSequence(last);
+                            }
+                        } catch (final InterruptedException e) {
+                            // Shutting down.
+                        } catch (final IOException | RuntimeException e) {
+                            // The batch is incomplete, so the sequence must not move past it.
+                            fail(e);
+                        }
+                    }
+                });
+            }
+        }
 
-            reader.incRef();
-            return reader;
+        /**
+         * Queued behind any pending batches so the commit only ever contains
+         * whole batches and its last_seq matches them exactly.
+         */
+        private void commit() {
+            for (final Shard shard : shards) {
+                shard.lane.execute(new Runnable() {
+
+                    public void run() {
+                        try {
+                            final UpdateSequence written = shard.written;
+                            if (written.isLaterThan(getUpdateSequence(shard.writer))) {
+                                final Map<String, String> userData = new HashMap<>();
+                                userData.put("last_seq", written.toString());
+                                shard.writer.setCommitData(userData);
+                                shard.writer.commit();
+                                logger.info(shard + " now at update_seq " + written);
+                            }
+                        } catch (final IOException e) {
+                            fail(e);
+                        }
+                    }
+                });
+            }
         }
 
-        public IndexSearcher borrowSearcher(final boolean staleOk)
-                throws IOException, JSONException {
-            return new IndexSearcher(borrowReader(staleOk));
+        private Shard getShard(final String id) {
+            return shards[(id.hashCode() & Integer.MAX_VALUE) % shards.length];
         }
 
-        public void returnReader(final IndexReader reader) throws IOException {
-            reader.decRef();
+        private JSONObject getStats() throws JSONException {
+            final JSONObject result = new JSONObject();
+            result.put("refreshes", refreshes.get());
+            result.put("borrows", borrows.get());
+            result.put("cached_borrows", cachedBorrows.get());
+            result.put("converter", converters.getStats());
+            result.put("latest_sequence", latestSequence.getStats());
+            result.put("search_pool", searchPool.getStats());
+            result.put("worker_pool", workerPool.getStats());
+            result.put("document_cache", documentCache.getStats());
+            result.put("result_cache", results.getStats());
+            result.put("filter_cache", getFilterStats());
+            result.put("parse_cache", getParseStats());
+            result.put("timed_out_searches", timeouts.get());
+            result.put("cancelled_searches", cancellations.get());
+            result.put("cancelled_fetches", cancelledFetches.get());
+            return result;
         }
 
-        public void returnSearcher(final IndexSearcher searcher)
-                throws IOException {
-            returnReader(searcher.getIndexReader());
+        /**
+         * Parses a query, or returns the query parsed by an earlier call
+         * with the same arguments. Parsed queries are shared, so they must
+         * not be modified.
+         *
+         * @param analyzerName the analyzer, or null for that of the view.
+         */
+        public Query parse(final String query, final Operator operator, final String analyzerName)
+                throws ParseException, JSONException {
+            final String key = analyzerName + '\u0000' + operator + '\u0000' + query;
+            synchronized (parsed) {
+                final Query result = parsed.get(key);
+                if (result != null) {
+                    parseHits.incrementAndGet();
+                    return result;
+                }
+            }
+            parseMisses.incrementAndGet();
+            final Query result = parseOnce(query, operator, analyzerName);
+            synchronized (parsed) {
+                parsed.put(key, result);
+                final Iterator<Query> it = parsed.values().iterator();
+                while (parsed.size() > getParseCacheSize() && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            return result;
         }
 
-        public Query parse(final String query, final Operator operator, final Analyzer analyzer) throws ParseException, JSONException {
+        /**
+         * Parses a query without caching it, for queries that rarely repeat,
+         * such as bound templates, which would otherwise push the queries
+         * that do repeat out of the cache.
+         */
+        public Query parseOnce(final String query, final Operator operator, final String analyzerName)
+                throws ParseException, JSONException {
             final QueryParser parser = new CustomQueryParser(Constants.VERSION,
-                    Constants.DEFAULT_FIELD, analyzer);
+                    Constants.DEFAULT_FIELD, analyzer(analyzerName));
             parser.setDefaultOperator(operator);
             parser.setAllowLeadingWildcard(ini.getBoolean("lucene.allowLeadingWildcard", false));
             parser.setLowercaseExpandedTerms(ini.getBoolean("lucene.lowercaseExpandedTerms", true));
             return parser.parse(query);
         }
 
+        private JSONObject getParseStats() throws JSONException {
+            final JSONObject result = new JSONObject();
+            synchronized (parsed) {
+                result.put("entries", parsed.size());
+            }
+            result.put("hits", parseHits.get());
+            result.put("misses", parseMisses.get());
+            return result;
+        }
+
+        /**
+         * @return the named query of a view, split into text and parameters
+         * the first time it is used.
+         * @throws ParseException if the view has no such query.
+         */
+        public QueryTemplate template(final View view, final String name) throws ParseException {
+            final String source = view.getQuery(name);
+            if (source == null) {
+                throw new ParseException("No query template named '" + name + "'.");
+            }
+            QueryTemplate result = templates.get(source);
+            if (result == null) {
+                result = new QueryTemplate(source);
+                templates.putIfAbsent(source, result);
+            }
+            return result;
+        }
+
+        /**
+         * @return a filter matching every query, built from the cached filter
+         * of each, or null if there are none.
+         */
+        public Filter filter(final List<Query> queries) {
+            if (queries.isEmpty()) {
+                return null;
+            }
+            if (queries.size() == 1) {
+                return filter(queries.get(0));
+            }
+            final BooleanFilter result = new BooleanFilter();
+            for (final Query query : queries) {
+                result.add(filter(query), BooleanClause.Occur.MUST);
+            }
+            return result;
+        }
+
+        private synchronized Filter filter(final Query query) {
+            CachingWrapperFilter result = filters.get(query);
+            if (result != null) {
+                filterHits.incrementAndGet();
+                return result;
+            }
+            filterMisses.incrementAndGet();
+            result = new CachingWrapperFilter(new QueryWrapperFilter(query));
+            filters.put(query, result);
+            final Iterator<CachingWrapperFilter> it = filters.values().iterator();
+            while (filters.size() > getFilterCacheSize() && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            return result;
+        }
+
+        private JSONObject getFilterStats() throws JSONException {
+            final JSONObject result = new JSONObject();
+            synchronized (this) {
+                long bytes = 0;
+                for (final CachingWrapperFilter filter : filters.values()) {
+                    bytes += filter.ramBytesUsed();
+                }
+                result.put("entries", filters.size());
+                result.put("bytes", bytes);
+            }
+            result.put("hits", filterHits.get());
+            result.put("misses", filterMisses.get());
+            return result;
+        }
+
         public Analyzer analyzer(final String analyzerName) throws JSONException {
-            return analyzerName == null ? this.analyzer : Analyzers.getAnalyzer(analyzerName);
+            return analyzerName == null ? this.analyzer : view.getAnalyzer(analyzerName);
         }
 
         private synchronized void close() throws IOException {
-            if (reader != null)
-                reader.close();
-            if (writer != null)
-                writer.rollback();
+            try {
+                manager.close();
+                for (final Shard shard : shards) {
+                    shard.writer.rollback();
+                }
+            } finally {
+                view.releaseAnalyzer();
+            }
         }
 
         private synchronized String getEtag() {
             return etag;
         }
 
+        private synchronized void setEtag(final String etag) {
+            this.etag = etag;
+        }
+
         public UUID getUuid() throws JSONException, IOException {
             return database.getUuid();
         }
@@ -158,7 +476,11 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             if (staleOk) {
                 return;
             }
-            final UpdateSequence latest = database.getLastSequence();
+            final UpdateSequence latest = latestSequence.get();
+            if (getPendingSequence().isEarlierThan(latest)) {
+                // Don't leave the changes it waits for in an open batch.
+                flushBatch();
+            }
             synchronized (this) {
                 long timeout = getSearchTimeout();
                 while (pending_seq.isEarlierThan(latest)) {
@@ -176,6 +498,10 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             }
         }
 
+        private synchronized UpdateSequence getPendingSequence() {
+            return pending_seq;
+        }
+
         private synchronized void setPendingSequence(final UpdateSequence seq) {
             pending_seq = seq;
             notifyAll();
@@ -183,14 +509,170 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
         @Override
         public String toString() {
-            return writer.getDirectory().toString();
+            return shards.length == 1 ? shards[0].toString() : view + " (" + shards.length + " shards)";
         }
     }
 
-    private final class RestrictiveClassShutter implements ClassShutter {
+    /**
+     * One sub-index of a view. Only its lane touches the writer's
+     * documents and written, the last batch it has applied.
+     */
+    private static final class Shard {
+
+        private final String name;
+        private final IndexWriter writer;
+        private final ExecutorService lane;
+        private UpdateSequence written;
+
+        private Shard(final String name, final IndexWriter writer,
+                      final ExecutorService lane, final UpdateSequence written) {
+            this.name = name;
+            this.writer = writer;
+            this.lane = lane;
+            this.written = written;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class Change {
+
+        private final UpdateSequence seq;
+        private final String id;
+        private final CouchDocument doc;
+
+        private Change(final UpdateSequence seq, final String id, final CouchDocument doc) {
+            this.seq = seq;
+            this.id = id;
+            this.doc = doc;
+        }
+    }
+
+    /**
+     * The numeric parameters of a search, parsed and checked before the
+     * response is started so a bad one is still a 400.
+     */
+    private final class SearchOptions {
+
+        private final int limit;
+        private final int skip;
+        private final int highlights;
+        private final int highlightLength;
+        private final long timeout;
+
+        private SearchOptions(final HttpServletRequest req) {
+            this.limit = getIntParameter(req, "limit", ini.getInt("lucene.limit", 25));
+            this.skip = getIntParameter(req, "skip", 0);
+            this.highlights = getIntParameter(req, "highlights", 0);
+            // The fast vector highlighter needs fragments of at least 18 characters.
+            this.highlightLength = max(getIntParameter(req, "highlight_length", 18), 18);
+            this.timeout = getLongParameter(req, "timeout", getCollectionTimeout());
+            if (highlights < 0) {
+                throw new IllegalArgumentException("highlights can not be negative");
+            }
+            checkPage(limit, skip, timeout);
+        }
+    }
+
+    /**
+     * One query of a batch, parsed before any of them is run.
+     */
+    private final class BatchQuery {
+
+        private final IndexState state;
+        private final String view;
+        private final Query q;
+        private final Filter filter;
+        private final Sort sort;
+        private final int limit;
+        private final int skip;
+        private final long timeout;
+        private final Set<String> fieldsToLoad;
+
+        /**
+         * @throws IllegalArgumentException if limit, skip or timeout is out
+         *                                  of range.
+         */
+        private BatchQuery(final IndexState state, final View definition, final String view,
+                           final JSONObject spec) throws ParseException, JSONException {
+            this.state = state;
+            this.view = view;
+            final String analyzer = spec.optString("analyzer", null);
+            final Operator operator = toOperator(spec.optString("default_operator", null));
+            final String template = spec.optString("template", null);
+            this.q = template == null ? state.parse(spec.getString("q"), operator, analyzer)
+                    : state.parseOnce(state.template(definition, template).bind(spec.optJSONObject("params")),
+                    operator, analyzer);
+            final Object fq = spec.opt("fq");
+            final List<Query> filterQueries = new ArrayList<>();
+            if (fq instanceof JSONArray) {
+                for (int i = 0; i < ((JSONArray) fq).length(); i++) {
+                    filterQueries.add(state.parse(((JSONArray) fq).getString(i), operator, analyzer));
+                }
+            } else if (fq != null) {
+                filterQueries.add(state.parse(fq.toString(), operator, analyzer));
+            }
+            this.filter = state.filter(filterQueries);
+            this.sort = CustomQueryParser.toSort(spec.optString("sort", null));
+            this.limit = spec.optInt("limit", ini.getInt("lucene.limit", 25));
+            this.skip = spec.optInt("skip", 0);
+            this.timeout = spec.optLong("timeout", getCollectionTimeout());
+            checkPage(limit, skip, timeout);
+            final Object fields = spec.opt("include_fields");
+            if (fields == null) {
+                this.fieldsToLoad = null;
+            } else if (fields instanceof JSONArray) {
+                this.fieldsToLoad = new HashSet<>();
+                for (int i = 0; i < ((JSONArray) fields).length(); i++) {
+                    fieldsToLoad.add(((JSONArray) fields).getString(i));
+                }
+            } else {
+                this.fieldsToLoad = new HashSet<>(Arrays.asList(Utils.splitOnCommas(fields.toString())));
+            }
+        }
+
+        /**
+         * Runs on a thread of the search pool, so it searches every segment
+         * of the reader itself.
+         */
+        private JSONObject search(final IndexReader reader, final Cancellation cancellation)
+                throws IOException, JSONException {
+            final StopWatch stopWatch = new StopWatch();
+            final CancellableSearcher searcher = new CancellableSearcher(reader, null, cancellation, timeout);
+            final int n = Math.max(1, Math.min(skip + limit, reader.maxDoc()));
+            final TopDocs td = sort == null
+                    ? searcher.search(q, filter, n)
+                    : searcher.search(q, filter, n, sort);
+            stopWatch.lap("search");
+            cancellation.check();
 
-        public boolean visibleToScripts(final String fullClassName) {
-            return false;
+            final JSONObject result = new JSONObject();
+            result.put("view", view);
+            result.put("q", q.toString());
+            result.put("skip", skip);
+            result.put("limit", limit);
+            result.put("total_rows", td.totalHits);
+            result.put("search_duration", stopWatch.getElapsed("search"));
+            if (searcher.isTimedOut()) {
+                timeouts.incrementAndGet();
+                result.put("timed_out", true);
+            }
+            if (td instanceof TopFieldDocs) {
+                result.put("sort_order", CustomQueryParser.toJSON(((TopFieldDocs) td).fields));
+            }
+            final JSONArray rows = new JSONArray();
+            for (int i = skip; i < Math.min(td.scoreDocs.length, skip + limit); i++) {
+                cancellation.check();
+                final Document doc = fieldsToLoad == null
+                        ? searcher.doc(td.scoreDocs[i].doc)
+                        : searcher.doc(td.scoreDocs[i].doc, fieldsToLoad);
+                rows.put(toRow(doc, td.scoreDocs[i]));
+            }
+            result.put("rows", rows);
+            return result;
         }
     }
 
@@ -214,18 +696,43 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
     private final HttpClient client;
 
-    private boolean closed;
+    private volatile boolean closed;
 
-    private Context context;
+    private final List<ExecutorService> lanes = new ArrayList<>();
+
+    private final SearchPool searchPool;
+
+    private final WorkerPool workerPool;
+
+    private volatile Exception failure;
+
+    // Filled by the changes reader and written by it or by the refresher.
+    private final Map<String, Change> batch = new LinkedHashMap<>();
+
+    private long batchStart;
 
     private final Database database;
 
+    private final LatestSequence latestSequence;
+
+    private final DocumentCache documentCache;
+
+    // Searches of this database that ran out of time collecting hits.
+    private final AtomicLong timeouts = new AtomicLong();
+
+    // Searches, and batches of include_docs, abandoned by their clients.
+    private final AtomicLong cancellations = new AtomicLong();
+
+    private final AtomicLong cancelledFetches = new AtomicLong();
+
     private UpdateSequence ddoc_seq;
 
     private long lastCommit;
 
     private final CountDownLatch latch = new CountDownLatch(1);
 
+    private ScheduledExecutorService refresher;
+
     private final Logger logger;
 
     private final Map<String, View> paths = new HashMap<>();
@@ -244,12 +751,17 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
     private final HierarchicalINIConfiguration ini;
 
     public DatabaseIndexer(final HttpClient client, final File root,
-                           final Database database, final HierarchicalINIConfiguration ini)
+                           final Database database, final HierarchicalINIConfiguration ini,
+                           final SearchPool searchPool, final WorkerPool workerPool)
             throws IOException, JSONException {
         this.client = client;
         this.root = root;
         this.database = database;
         this.ini = ini;
+        this.searchPool = searchPool;
+        this.workerPool = workerPool;
+        this.latestSequence = new LatestSequence(database, getLatestSequenceMaxAge());
+        this.documentCache = new DocumentCache(getDocumentCacheSize());
         this.logger = Logger.getLogger(DatabaseIndexer.class.getName() + "."
                 + database.getInfo().getName());
     }
@@ -263,7 +775,9 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
         if ("_expunge".equals(command)) {
             logger.info("Expunging deletes from " + state);
-            state.writer.forceMergeDeletes(false);
+            for (final Shard shard : state.shards) {
+                shard.writer.forceMergeDeletes(false);
+            }
             resp.setStatus(202);
             ServletUtils.sendJsonSuccess(req, resp);
             return;
@@ -271,7 +785,9 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
 
         if ("_optimize".equals(command)) {
             logger.info("Optimizing " + state);
-            state.writer.forceMerge(1, false);
+            for (final Shard shard : state.shards) {
+                shard.writer.forceMerge(1, false);
+            }
             resp.setStatus(202);
             ServletUtils.sendJsonSuccess(req, resp);
             return;
@@ -296,11 +812,12 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         String line;
         loop:
         while ((line = reader.readLine()) != null) {
-            maybeCommit();
-
             // Heartbeat.
             if (line.length() == 0) {
                 logger.trace("heartbeat");
+                latestSequence.caughtUp();
+                flushBatch();
+                maybeCommit();
                 continue;
             }
 
@@ -318,6 +835,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                 }
 
                 final UpdateSequence seq = UpdateSequence.parseUpdateSequence(json.getString("seq"));
+                latestSequence.observe(seq);
                 final String id = json.getString("id");
                 CouchDocument doc;
                 if (!json.isNull("doc")) {
@@ -345,33 +863,27 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                     }
                 }
 
-                if (doc.isDeleted()) {
-                    for (final IndexState state : states.values()) {
-                        state.writer.deleteDocuments(new Term("_id", id));
-                        state.setPendingSequence(seq);
-                        state.readerDirty = true;
-                    }
-                } else {
-                    for (final Entry<View, IndexState> entry : states.entrySet()) {
-                        final View view = entry.getKey();
-                        final IndexState state = entry.getValue();
-
-                        if (seq.isLaterThan(state.pending_seq)) {
-                            final Collection<Document> docs;
-                            try {
-                                docs = state.converter.convert(doc, view
-                                        .getDefaultSettings(), database);
-                            } catch (final Exception e) {
-                                logger.warn(id + " caused " + e.getMessage());
-                                continue loop;
-                            }
+                documentCache.invalidate(doc);
 
-                            state.writer.updateDocuments(new Term("_id", id), docs,
-                                    view.getAnalyzer());
-                            state.setPendingSequence(seq);
-                            state.readerDirty = true;
-                        }
+                final boolean full;
+                synchronized (batch) {
+                    if (batch.isEmpty()) {
+                        batchStart = now();
+                        scheduleFlush(batchStart);
                     }
+                    // Only the latest change to each document matters.
+                    batch.remove(id);
+                    batch.put(id, new Change(seq, id, doc));
+                    full = batch.size() >= getBatchSize() || now() - batchStart >= getBatchInterval();
+                }
+                if (full) {
+                    flushBatch();
+                    maybeCommit();
+                }
+
+                if (failure != null) {
+                    logger.warn("Indexing stopping due to failure in a lane.", failure);
+                    break;
                 }
             } catch (final JSONException e) {
                 logger.error("JSON exception in changes loop", e);
@@ -382,21 +894,58 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return null;
     }
 
+    /**
+     * Writes the batch started at start once it is batchInterval old, if
+     * it has not been written already, so a partial batch does not wait for
+     * more changes or the next heartbeat.
+     */
+    private void scheduleFlush(final long start) {
+        refresher.schedule(new Runnable() {
+
+            public void run() {
+                try {
+                    synchronized (batch) {
+                        if (!batch.isEmpty() && batchStart == start) {
+                            flushBatch();
+                        }
+                    }
+                } catch (final RejectedExecutionException e) {
+                    // Closing, the lanes are shut down.
+                }
+            }
+        }, getBatchInterval(), NANOSECONDS);
+    }
+
     public void info(final HttpServletRequest req,
                      final HttpServletResponse resp) throws IOException, JSONException {
         final IndexState state = getState(req, resp);
         if (state == null)
             return;
-        final DirectoryReader reader = state.borrowReader(true);
+        final IndexSearcher searcher = state.borrowSearcher(true);
+        final IndexReader reader = searcher.getIndexReader();
         try {
+            boolean current = true;
+            long diskSize = 0;
+            long version = 0;
+            UpdateSequence updateSeq = null;
+            for (final DirectoryReader shard : ShardedSearcherManager.getShardReaders(reader)) {
+                current &= shard.isCurrent();
+                diskSize += Utils.directorySize(shard.directory());
+                version += shard.getVersion();
+                final UpdateSequence seq = getUpdateSequence(shard.getIndexCommit().getUserData());
+                if (updateSeq == null || seq.isEarlierThan(updateSeq)) {
+                    updateSeq = seq;
+                }
+            }
             final JSONObject result = new JSONObject();
-            result.put("current", reader.isCurrent());
-            result.put("disk_size", Utils.directorySize(reader.directory()));
+            result.put("current", current);
+            result.put("disk_size", diskSize);
             result.put("doc_count", reader.numDocs());
             result.put("doc_del_count", reader.numDeletedDocs());
             result.put("uuid", state.getUuid());
             result.put("digest", state.getDigest());
-            result.put("update_seq", getUpdateSequence(reader.getIndexCommit().getUserData()));
+            result.put("shards", state.shards.length);
+            result.put("update_seq", updateSeq);
             final JSONArray fields = new JSONArray();
             for (AtomicReaderContext leaf : reader.leaves()) {
                 for (FieldInfo info : leaf.reader().getFieldInfos()) {
@@ -409,8 +958,9 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                 }
             }
             result.put("fields", fields);
-            result.put("version", reader.getVersion());
+            result.put("version", version);
             result.put("ref_count", reader.getRefCount());
+            result.put("stats", state.getStats());
 
             final JSONObject info = new JSONObject();
             info.put("code", 200);
@@ -425,7 +975,7 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                 writer.close();
             }
         } finally {
-            state.returnReader(reader);
+            state.returnSearcher(searcher);
         }
     }
 
@@ -470,223 +1020,754 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         final IndexState state = getState(req, resp);
         if (state == null)
             return;
+        if (!searchPool.admit()) {
+            ServletUtils.sendJsonError(req, resp, 503, "too_many_searches");
+            return;
+        }
+        try {
+            search(state, req, resp);
+        } finally {
+            searchPool.leave();
+        }
+    }
+
+    /**
+     * Answers a JSON array of queries in one request. Each query names its
+     * view, as _design/ddoc/view, and has a q and optionally sort, limit,
+     * skip, timeout, include_fields, analyzer and default_operator. All
+     * queries of a view share one snapshot of it and the queries run side by
+     * side on the search pool. Each query is admitted as a search, and the
+     * batch is abandoned, like a search, once its client has gone away.
+     */
+    public void batch(final HttpServletRequest req,
+                      final HttpServletResponse resp) throws IOException, JSONException {
+        final JSONArray specs;
+        try {
+            specs = readArray(req.getReader(), getMaxBatchSize(), "queries");
+        } catch (final JSONException e) {
+            ServletUtils.sendJsonError(req, resp, 400, "Bad batch: " + e.getMessage());
+            return;
+        }
+        final String database = new PathParts(req).getDatabaseName();
+        final List<BatchQuery> queries = new ArrayList<>(specs.length());
+        for (int i = 0; i < specs.length(); i++) {
+            final JSONObject spec = specs.optJSONObject(i);
+            if (spec == null) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad batch: query " + i + " is not an object");
+                return;
+            }
+            final String path = spec.optString("view", "");
+            final String[] parts = path.split("/");
+            if (parts.length == 3 && blacklist().contains(database + "/" + parts[0] + "/" + parts[1])) {
+                ServletUtils.sendJsonError(req, resp, 422, "document in blacklist");
+                return;
+            }
+            final View view = paths.get(path);
+            if (view == null) {
+                ServletUtils.sendJsonError(req, resp, 400, "no_such_view");
+                return;
+            }
+            final IndexState state = states.get(view);
+            if (state == null) {
+                ServletUtils.sendJsonError(req, resp, 400, "no_such_state");
+                return;
+            }
+            try {
+                queries.add(new BatchQuery(state, view, path, spec));
+            } catch (final ParseException | JSONException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad query syntax in query " + i + ": "
+                        + e.getMessage());
+                return;
+            } catch (final IllegalArgumentException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad parameter in query " + i + ": "
+                        + e.getMessage());
+                return;
+            }
+        }
+
+        if (!searchPool.admit(queries.size())) {
+            ServletUtils.sendJsonError(req, resp, 503, "too_many_searches");
+            return;
+        }
+        final Map<IndexState, IndexSearcher> borrowed = new HashMap<>();
+        try {
+            for (final BatchQuery query : queries) {
+                if (!borrowed.containsKey(query.state)) {
+                    borrowed.put(query.state, query.state.borrowSearcher(isStaleOk(req)));
+                }
+            }
+
+            // Every query is valid, so start the response.
+            ServletUtils.setResponseContentTypeAndEncoding(req, resp);
+            final Writer out = resp.getWriter();
+            final Cancellation cancellation = new Cancellation(out, getDisconnectCheckInterval());
+            final List<Future<JSONObject>> futures = new ArrayList<>(queries.size());
+            try {
+                final JSONStreamWriter writer = new JSONStreamWriter(out, 0);
+                writer.object();
+                // The queries run on the pool, so each searches its segments
+                // on its own thread rather than queueing them behind itself.
+                for (final BatchQuery query : queries) {
+                    final IndexReader reader = borrowed.get(query.state).getIndexReader();
+                    futures.add(searchPool.submit(new Callable<JSONObject>() {
+
+                        public JSONObject call() throws Exception {
+                            return query.search(reader, cancellation);
+                        }
+                    }));
+                }
+                writer.key("results").array();
+                try {
+                    for (final Future<JSONObject> future : futures) {
+                        writer.value(awaitQuery(future, cancellation));
+                    }
+                    writer.endArray();
+                } catch (final IOException | JSONException e) {
+                    // The status has been sent, so end the result with the error instead.
+                    logger.warn("Batch search failed after its response started.", e);
+                    writer.endTo(1);
+                    writer.key("error").value(String.valueOf(e.getMessage()));
+                }
+                writer.endObject();
+                out.write("\r\n");
+            } catch (final Cancellation.CancelledException e) {
+                cancellations.incrementAndGet();
+                logger.debug("Abandoned batch search for disconnected client.");
+            } finally {
+                // Wait for every query, so no searcher is returned while in use.
+                for (final Future<JSONObject> future : futures) {
+                    try {
+                        future.get();
+                    } catch (final ExecutionException | CancellationException e) {
+                        // Already reported, or abandoned with the batch.
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                out.flush();
+                out.close();
+            }
+        } finally {
+            for (final Entry<IndexState, IndexSearcher> entry : borrowed.entrySet()) {
+                entry.getKey().returnSearcher(entry.getValue());
+            }
+            searchPool.leave(queries.size());
+        }
+    }
+
+    /**
+     * Waits for one query of a batch, checking on the client meanwhile.
+     */
+    private JSONObject awaitQuery(final Future<JSONObject> future, final Cancellation cancellation)
+            throws IOException, JSONException {
+        try {
+            while (true) {
+                try {
+                    return future.get(getDisconnectCheckInterval(), MILLISECONDS);
+                } catch (final TimeoutException e) {
+                    cancellation.check();
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while searching.");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Cancellation.CancelledException) {
+                throw (Cancellation.CancelledException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            throw new IOException("Batch search failed.", cause);
+        }
+    }
+
+    private void search(final IndexState state, final HttpServletRequest req,
+                        final HttpServletResponse resp) throws IOException, JSONException {
         final IndexSearcher searcher = state.borrowSearcher(isStaleOk(req));
         final String etag = state.getEtag();
-        final FastVectorHighlighter fvh = new FastVectorHighlighter(true, true);
-        final JSONArray result = new JSONArray();
         try {
             if (state.notModified(req)) {
                 resp.setStatus(304);
                 return;
             }
-            for (final String queryString : getQueryStrings(req)) {
-                final Analyzer analyzer = state.analyzer(req.getParameter("analyzer"));
-                final Operator operator = "and".equalsIgnoreCase(req.getParameter("default_operator"))
-                        ? Operator.AND : Operator.OR;
-                final Query q = state.parse(queryString, operator, analyzer);
-
-                final JSONObject queryRow = new JSONObject();
-                queryRow.put("q", q.toString());
-                if (getBooleanParameter(req, "debug")) {
-                    queryRow.put("plan", QueryPlan.toPlan(q));
-                    queryRow.put("analyzer", analyzer.getClass());
-                }
-                queryRow.put("etag", etag);
-                if (getBooleanParameter(req, "rewrite")) {
-                    final Query rewritten_q = q.rewrite(searcher
-                            .getIndexReader());
-                    queryRow.put("rewritten_q", rewritten_q.toString());
-
-                    final JSONObject freqs = new JSONObject();
-
-                    final Set<Term> terms = new HashSet<>();
-                    rewritten_q.extractTerms(terms);
-                    for (final Term term : terms) {
-                        final int freq = searcher.getIndexReader().docFreq(term);
-                        freqs.put(term.toString(), freq);
+            final String analyzerName = req.getParameter("analyzer");
+            final Analyzer analyzer;
+            try {
+                analyzer = state.analyzer(analyzerName);
+            } catch (final IllegalArgumentException | JSONException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad analyzer: " + e.getMessage());
+                return;
+            }
+            final Operator operator = toOperator(req.getParameter("default_operator"));
+            final JSONObject params;
+            try {
+                params = getJsonObjectParameter(req, "params");
+            } catch (final JSONException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad params: " + e.getMessage());
+                return;
+            }
+            // Only the first query is answered but all of them must parse.
+            Query q = null;
+            final List<Query> filterQueries = new ArrayList<>();
+            final Sort sort;
+            try {
+                final String template = req.getParameter("template");
+                if (template == null) {
+                    for (final String queryString : getQueryStrings(req)) {
+                        final Query parsed = state.parse(queryString, operator, analyzerName);
+                        if (q == null) {
+                            q = parsed;
+                        }
                     }
-                    queryRow.put("freqs", freqs);
                 } else {
-                    // Perform the search.
-                    final TopDocs td;
-                    final StopWatch stopWatch = new StopWatch();
-
-                    final boolean include_docs = getBooleanParameter(req,
-                            "include_docs");
-                    final int highlights = getIntParameter(req, "highlights", 0);
-                    final int highlight_length = max(getIntParameter(req, "highlight_length", 18), 18); // min for fast term vector highlighter is 18
-                    //final boolean include_termvectors = getBooleanParameter(req, "include_termvectors");
-                    final int limit = getIntParameter(req, "limit",
-                            ini.getInt("lucene.limit", 25));
-                    final Sort sort = CustomQueryParser.toSort(req
-                            .getParameter("sort"));
-                    final int skip = getIntParameter(req, "skip", 0);
-
-                    final Set<String> fieldsToLoad;
-                    if (req.getParameter("include_fields") == null) {
-                        fieldsToLoad = null;
-                    } else {
-                        final String[] fields = Utils.splitOnCommas(
-                                req.getParameter("include_fields"));
-                        final List<String> list = Arrays.asList(fields);
-                        fieldsToLoad = new HashSet<>(list);
-                    }
+                    q = state.parseOnce(state.template(paths.get(toPath(req)), template).bind(params),
+                            operator, analyzerName);
+                }
+                for (final String filterString : getFilterStrings(req)) {
+                    filterQueries.add(state.parse(filterString, operator, analyzerName));
+                }
+                sort = CustomQueryParser.toSort(req.getParameter("sort"));
+            } catch (final ParseException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad query syntax: "
+                        + e.getMessage());
+                return;
+            }
+            if (q == null) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad query syntax: no query");
+                return;
+            }
+            final String token = req.getParameter("bookmark");
+            final Bookmark bookmark;
+            try {
+                bookmark = token == null || token.isEmpty() ? null : Bookmark.decode(token, sort);
+            } catch (final IllegalArgumentException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad bookmark: " + e.getMessage());
+                return;
+            }
+            final List<String> counts;
+            try {
+                counts = getCounts(req);
+            } catch (final JSONException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad counts: " + e.getMessage());
+                return;
+            }
+            if (counts != null) {
+                try {
+                    FacetCollector.checkFields(searcher.getIndexReader(), counts);
+                } catch (final ParseException e) {
+                    ServletUtils.sendJsonError(req, resp, 400, e.getMessage());
+                    return;
+                }
+            }
+            final RangeCollector ranges;
+            try {
+                ranges = getRanges(req);
+                if (ranges != null) {
+                    ranges.checkBuckets(searcher.getIndexReader(), getMaxHistogramBuckets());
+                }
+            } catch (final ParseException | JSONException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad ranges: " + e.getMessage());
+                return;
+            }
+            final SearchOptions options;
+            try {
+                options = new SearchOptions(req);
+            } catch (final IllegalArgumentException e) {
+                ServletUtils.sendJsonError(req, resp, 400, "Bad parameter: " + e.getMessage());
+                return;
+            }
 
-                    if (sort == null) {
-                        td = searcher.search(q, null, skip + limit);
-                    } else {
-                        td = searcher.search(q, null, skip + limit, sort);
-                    }
-                    stopWatch.lap("search");
-
-                    // Fetch matches (if any).
-                    final int max = Math.max(0, Math.min(td.totalHits - skip,
-                            limit));
-                    final JSONArray rows = new JSONArray();
-                    final String[] fetch_ids = new String[max];
-                    for (int i = skip; i < skip + max; i++) {
-                        final Document doc;
-                        if (fieldsToLoad == null) {
-                            doc = searcher.doc(td.scoreDocs[i].doc);
-                        } else {
-                            doc = searcher.doc(td.scoreDocs[i].doc, fieldsToLoad);
-                        }
+            // Every parameter is valid, so start the response.
+            resp.setHeader("ETag", etag);
+            resp.setHeader("Cache-Control", "must-revalidate");
+            ServletUtils.setResponseContentTypeAndEncoding(req, resp);
+
+            final String callback = req.getParameter("callback");
+            final boolean debug = Boolean.parseBoolean(req.getParameter("debug"));
+            final Writer out = resp.getWriter();
+            try {
+                final JSONStreamWriter writer = new JSONStreamWriter(out, callback == null && debug ? 2 : 0);
+                if (callback != null) {
+                    out.write(callback);
+                    out.write('(');
+                }
+                writer.object();
+                final Cancellation cancellation = new Cancellation(out, getDisconnectCheckInterval());
+                try {
+                    writeQueryResult(searcher, q, state.filter(filterQueries), sort, bookmark, counts, ranges,
+                            options, analyzer, etag, state.sourcePaths != null, state.results, req, writer,
+                            cancellation);
+                } catch (final IOException | JSONException e) {
+                    // The status has been sent, so end the result with the error instead.
+                    logger.warn("Search failed after its response started: " + req.getQueryString(), e);
+                    writer.endTo(1);
+                    writer.key("error").value(String.valueOf(e.getMessage()));
+                }
+                writer.endObject();
+                if (callback != null) {
+                    out.write(')');
+                }
+            } catch (final Cancellation.CancelledException e) {
+                cancellations.incrementAndGet();
+                logger.debug("Abandoned search for disconnected client: " + req.getQueryString());
+            } finally {
+                out.flush();
+                out.close();
+            }
+        } finally {
+            state.returnSearcher(searcher);
+        }
+    }
 
-                        final JSONObject row = new JSONObject();
-                        final JSONObject fields = new JSONObject();
-                        final JSONObject highlight_rows = new JSONObject();
+    /**
+     * Writes the members of one query's result. Rows are written as they
+     * are found, a batch at a time when documents are included, so the
+     * response never holds more than a batch of them. Views that store
+     * their documents include them without asking CouchDB, unless another
+     * view was requested. With a bookmark the search resumes after the last
+     * row of the previous page, so skip only counts rows past it. Facet
+     * counts and ranges are collected in the same pass as the top hits.
+     * With a timeout, collection stops when it runs out and the hits found
+     * so far are returned. All of the work is abandoned, by throwing
+     * CancelledException, once the client has gone away. Complete results
+     * of the search itself are cached, so repeating a search of the same
+     * reader only loads its rows. The filter, if any, restricts the hits
+     * without affecting their scores.
+     */
+    private void writeQueryResult(final IndexSearcher searcher, final Query q, final Filter filter, final Sort sort,
+                                  final Bookmark bookmark, final List<String> counts,
+                                  final RangeCollector ranges, final SearchOptions options, final Analyzer analyzer,
+                                  final String etag, final boolean storesSource,
+                                  final ResultCache results, final HttpServletRequest req, final JSONStreamWriter writer,
+                                  final Cancellation cancellation)
+            throws IOException, JSONException {
+        writer.key("q").value(q.toString());
+        if (filter != null) {
+            writer.key("fq").value(filter.toString());
+        }
+        if (getBooleanParameter(req, "debug")) {
+            writer.key("plan").value(QueryPlan.toPlan(q));
+            writer.key("analyzer").value(analyzer.getClass());
+        }
+        writer.key("etag").value(etag);
+        if (getBooleanParameter(req, "rewrite")) {
+            final Query rewritten_q = q.rewrite(searcher
+                    .getIndexReader());
+            writer.key("rewritten_q").value(rewritten_q.toString());
+
+            final JSONObject freqs = new JSONObject();
+
+            final Set<Term> terms = new HashSet<>();
+            rewritten_q.extractTerms(terms);
+            for (final Term term : terms) {
+                final int freq = searcher.getIndexReader().docFreq(term);
+                freqs.put(term.toString(), freq);
+            }
+            writer.key("freqs").value(freqs);
+            return;
+        }
 
-                        // Include stored fields.
-                        for (final IndexableField f : doc.getFields()) {
-                            if (!f.fieldType().stored()) {
-                                continue;
-                            }
-                            final String name = f.name();
-                            final Object value;
-                            if (f.numericValue() != null) {
-                                value = f.numericValue();
-                            } else {
-                                value = f.stringValue();
-                            }
-                            if (value != null) {
-                                if ("_id".equals(name)) {
-                                    row.put("id", value);
-                                } else {
-                                    if (!fields.has(name)) {
-                                        fields.put(name, value);
-                                    } else {
-                                        final Object obj = fields.get(name);
-                                        if (obj instanceof String || obj instanceof Number) {
-                                            final JSONArray arr = new JSONArray();
-                                            arr.put(obj);
-                                            arr.put(value);
-                                            fields.put(name, arr);
-                                        } else {
-                                            assert obj instanceof JSONArray;
-                                            ((JSONArray) obj).put(value);
-                                        }
-                                    }
-
-                                    if (highlights > 0) {
-                                        String[] frags = fvh.getBestFragments(fvh.getFieldQuery(q), searcher.getIndexReader(), td.scoreDocs[i].doc, name, highlight_length, highlights);
-                                        highlight_rows.put(name, frags);
-                                    }
-                                }
-                            }
-                        }
+        // Perform the search.
+        final TopDocs td;
+        final StopWatch stopWatch = new StopWatch();
+
+        final boolean include_docs = getBooleanParameter(req,
+                "include_docs");
+        final int highlights = options.highlights;
+        final int highlight_length = options.highlightLength;
+        //final boolean include_termvectors = getBooleanParameter(req, "include_termvectors");
+        final int limit = options.limit;
+        final int skip = options.skip;
+        final long timeout = options.timeout;
+
+        final String view = req.getParameter("view");
+        final boolean fromSource = include_docs && storesSource && (view == null || view.isEmpty());
+
+        final Set<String> fieldsToLoad;
+        if (req.getParameter("include_fields") == null) {
+            fieldsToLoad = null;
+        } else {
+            final String[] fields = Utils.splitOnCommas(
+                    req.getParameter("include_fields"));
+            final List<String> list = Arrays.asList(fields);
+            fieldsToLoad = new HashSet<>(list);
+            if (fromSource) {
+                fieldsToLoad.add(StoredSource.FIELD);
+            }
+            if (include_docs && documentCache.isEnabled()) {
+                fieldsToLoad.add(DocumentCache.REVISION);
+            }
+        }
 
-                        if (!Float.isNaN(td.scoreDocs[i].score)) {
-                            row.put("score", td.scoreDocs[i].score);
-                        }// Include sort order (if any).
-                        if (td instanceof TopFieldDocs) {
-                            final FieldDoc fd = (FieldDoc) ((TopFieldDocs) td).scoreDocs[i];
-                            row.put("sort_order", fd.fields);
-                        }
-                        // Fetch document (if requested).
-                        if (include_docs) {
-                            fetch_ids[i - skip] = doc.get("_id");
-                        }
-                        if (fields.length() > 0) {
-                            row.put("fields", fields);
-                        }
-                        if (highlight_rows.length() > 0) {
-                            row.put("highlights", highlight_rows);
-                        }
+        final ScoreDoc after = bookmark == null ? null : bookmark.getAfter();
+        final long version = Bookmark.getVersion(searcher.getIndexReader());
+        final ResultCache.Key key = !results.isEnabled() ? null : new ResultCache.Key(
+                filter == null ? q : new FilteredQuery(q, filter), sort,
+                "n=" + (skip + limit)
+                        + "&bookmark=" + req.getParameter("bookmark")
+                        + "&counts=" + counts
+                        + "&ranges=" + req.getParameter("ranges")
+                        + "&histograms=" + req.getParameter("histograms"), version);
+        final ResultCache.Result cached = key == null ? null : results.get(key);
+        final JSONObject countsResult;
+        final JSONObject rangesResult;
+        boolean timedOut = false;
+        if (cached != null) {
+            td = cached.getTopDocs();
+            countsResult = cached.getCounts();
+            rangesResult = cached.getRanges();
+        } else {
+            final CancellableSearcher pooled = searchPool.newSearcher(searcher.getIndexReader(),
+                    cancellation, timeout);
+            final int n = Math.max(1, Math.min(skip + limit, searcher.getIndexReader().maxDoc()));
+            if (counts == null && ranges == null) {
+                // Slices of segments are searched side by side on the pool.
+                td = sort == null
+                        ? pooled.searchAfter(after, q, filter, n)
+                        : pooled.searchAfter(after, q, filter, n, sort);
+                countsResult = null;
+            } else {
+                // Facets and ranges are counted in one pass on this thread.
+                final FacetCollector facets = counts == null ? null
+                        : new FacetCollector(searcher.getIndexReader(), counts);
+                final TopDocsCollector<?> collector = sort == null
+                        ? TopScoreDocCollector.create(n, after, false)
+                        : TopFieldCollector.create(sort, n, (FieldDoc) after, true, false, false, false);
+                pooled.search(q, filter, MultiCollector.wrap(collector, facets, ranges));
+                td = collector.topDocs();
+                countsResult = facets == null ? null : facets.getCounts();
+            }
+            if (pooled.isTimedOut()) {
+                timedOut = true;
+                timeouts.incrementAndGet();
+            }
+            rangesResult = ranges == null ? null : ranges.getRanges();
+        }
+        stopWatch.lap("search");
+        cancellation.check();
+        if (key != null && cached == null && !timedOut) {
+            results.put(key, new ResultCache.Result(td, countsResult, rangesResult));
+        }
+
+        writer.key("skip").value(skip);
+        writer.key("limit").value(limit);
+        writer.key("total_rows").value(td.totalHits);
+        writer.key("search_duration").value(stopWatch.getElapsed("search"));
+        if (timedOut) {
+            writer.key("timed_out").value(true);
+        }
+        // Include sort info (if requested).
+        if (td instanceof TopFieldDocs) {
+            writer.key("sort_order").value(CustomQueryParser
+                    .toJSON(((TopFieldDocs) td).fields));
+        }
+        if (countsResult != null) {
+            writer.key("counts").value(countsResult);
+        }
+        if (rangesResult != null) {
+            writer.key("ranges").value(rangesResult);
+        }
 
-                        rows.put(row);
+        // totalHits includes the matches before a bookmark, scoreDocs does not.
+        final int max = Math.max(0, Math.min(td.scoreDocs.length - skip,
+                limit));
+        if (max > 0) {
+            writer.key("bookmark").value(Bookmark.encode(td.scoreDocs[skip + max - 1], version));
+        }
+        if (bookmark != null && getBooleanParameter(req, "debug")) {
+            writer.key("bookmark_current").value(bookmark.getVersion() == version);
+        }
+
+        // Fetch matches (if any).
+        final FastVectorHighlighter fvh = new FastVectorHighlighter(true, true);
+        final int batchSize = getDocumentBatchSize();
+        final Deque<Future<List<JSONObject>>> fetches = new ArrayDeque<>();
+        List<JSONObject> rows = new ArrayList<>();
+        List<String> fetch_ids = new ArrayList<>();
+        List<String> fetch_revs = new ArrayList<>();
+        writer.key("rows").array();
+        try {
+            for (int i = skip; i < skip + max; i++) {
+                cancellation.check();
+                final Document doc;
+                if (fieldsToLoad == null) {
+                    doc = searcher.doc(td.scoreDocs[i].doc);
+                } else {
+                    doc = searcher.doc(td.scoreDocs[i].doc, fieldsToLoad);
+                }
+
+                final JSONObject row = toRow(doc, td.scoreDocs[i]);
+                final JSONObject fields = row.optJSONObject("fields");
+                if (highlights > 0 && fields != null) {
+                    final JSONObject highlight_rows = new JSONObject();
+                    final Iterator<?> names = fields.keys();
+                    while (names.hasNext()) {
+                        final String name = (String) names.next();
+                        String[] frags = fvh.getBestFragments(fvh.getFieldQuery(q), searcher.getIndexReader(), td.scoreDocs[i].doc, name, highlight_length, highlights);
+                        highlight_rows.put(name, frags);
                     }
-                    // Fetch documents (if requested).
-                    if (include_docs && fetch_ids.length > 0) {
-                        String view = req.getParameter("view");
-                        final List<CouchDocument> fetched_docs = database
-                                .getDocuments(view, fetch_ids);
-                        for (int j = 0; j < fetched_docs.size(); j++) {
-                            final CouchDocument doc = fetched_docs.get(j);
-                            final JSONObject row = doc == null ?
-                                    new JSONObject("{\"error\":\"not_found\"}") :
-                                    doc.asJson();
-                            rows.getJSONObject(j).put("doc", row);
+                    row.put("highlights", highlight_rows);
+                }
+                // Fetch document (if requested and not stored).
+                if (include_docs) {
+                    final JSONObject source = fromSource ? StoredSource.get(doc) : null;
+                    if (source != null) {
+                        row.put("doc", source);
+                    }
+                    fetch_ids.add(source == null ? doc.get("_id") : null);
+                    fetch_revs.add(doc.get(DocumentCache.REVISION));
+                }
+
+                if (!include_docs) {
+                    writer.value(row);
+                    continue;
+                }
+                rows.add(row);
+                if (rows.size() == batchSize || i == skip + max - 1) {
+                    if (fetches.isEmpty() && Collections.frequency(fetch_ids, null) == fetch_ids.size()) {
+                        // Every document was stored in the index.
+                        for (final JSONObject stored : rows) {
+                            writer.value(stored);
                         }
+                    } else {
+                        fetches.add(fetchDocuments(view, rows, fetch_ids, fetch_revs, cancellation));
                     }
-                    stopWatch.lap("fetch");
-
-                    queryRow.put("skip", skip);
-                    queryRow.put("limit", limit);
-                    queryRow.put("total_rows", td.totalHits);
-                    queryRow.put("search_duration", stopWatch
-                            .getElapsed("search"));
-                    queryRow.put("fetch_duration", stopWatch
-                            .getElapsed("fetch"));
-                    // Include sort info (if requested).
-                    if (td instanceof TopFieldDocs) {
-                        queryRow.put("sort_order", CustomQueryParser
-                                .toJSON(((TopFieldDocs) td).fields));
+                    rows = new ArrayList<>();
+                    fetch_ids = new ArrayList<>();
+                    fetch_revs = new ArrayList<>();
+                    // Write finished batches in order, only waiting when too many are in flight.
+                    while (!fetches.isEmpty() && (fetches.peek().isDone() || fetches.size() >= getFetchThreads())) {
+                        writeRows(fetches.remove(), writer, cancellation);
                     }
-                    queryRow.put("rows", rows);
                 }
-                result.put(queryRow);
             }
-        } catch (final ParseException e) {
-            ServletUtils.sendJsonError(req, resp, 400, "Bad query syntax: "
-                    + e.getMessage());
-            return;
+            while (!fetches.isEmpty()) {
+                writeRows(fetches.remove(), writer, cancellation);
+            }
         } finally {
-            state.returnSearcher(searcher);
+            for (final Future<List<JSONObject>> fetch : fetches) {
+                if (fetch.cancel(true)) {
+                    cancelledFetches.incrementAndGet();
+                }
+            }
         }
+        writer.endArray();
+        stopWatch.lap("fetch");
+        writer.key("fetch_duration").value(stopWatch.getElapsed("fetch"));
+    }
 
-        // writes the output based on parameters
-        resp.setHeader("ETag", etag);
-        resp.setHeader("Cache-Control", "must-revalidate");
-        ServletUtils.setResponseContentTypeAndEncoding(req, resp);
-
-        final String callback = req.getParameter("callback");
-        final boolean debug = Boolean.parseBoolean(req.getParameter("debug"));
-
-        final JSONObject json = result.optJSONObject(0);
-        final String body;
+    /**
+     * Fetches the documents for a batch of rows on the fetch threads, so
+     * several batches can be requested from CouchDB at once. Documents from
+     * _all_docs come from the document cache when it has the revision that
+     * was indexed. Rows with a null id already have their document. Batches
+     * still queued when the client goes away are not fetched; a request to
+     * CouchDB that has already started is not interrupted and its documents
+     * are discarded.
+     */
+    private Future<List<JSONObject>> fetchDocuments(final String view, final List<JSONObject> rows,
+                                                    final List<String> fetch_ids,
+                                                    final List<String> fetch_revs,
+                                                    final Cancellation cancellation) {
+        return workerPool.fetch(new Callable<List<JSONObject>>() {
+
+            public List<JSONObject> call() throws Exception {
+                if (cancellation.isCancelled()) {
+                    cancelledFetches.incrementAndGet();
+                    cancellation.check();
+                }
+                final List<JSONObject> missing_rows = new ArrayList<>(rows.size());
+                final List<String> missing_ids = new ArrayList<>(fetch_ids.size());
+                final boolean cached = documentCache.isEnabled() && (view == null || view.isEmpty());
+                for (int j = 0; j < fetch_ids.size(); j++) {
+                    if (fetch_ids.get(j) == null) {
+                        continue;
+                    }
+                    final JSONObject doc = cached ? documentCache.get(fetch_ids.get(j), fetch_revs.get(j)) : null;
+                    if (doc == null) {
+                        missing_rows.add(rows.get(j));
+                        missing_ids.add(fetch_ids.get(j));
+                    } else {
+                        rows.get(j).put("doc", doc);
+                    }
+                }
+                final List<CouchDocument> fetched_docs = database
+                        .getDocuments(view, missing_ids.toArray(new String[missing_ids.size()]));
+                for (int j = 0; j < fetched_docs.size(); j++) {
+                    final CouchDocument doc = fetched_docs.get(j);
+                    final JSONObject row = doc == null ?
+                            new JSONObject("{\"error\":\"not_found\"}") :
+                            doc.asJson();
+                    missing_rows.get(j).put("doc", row);
+                    if (cached && doc != null) {
+                        documentCache.put(doc);
+                    }
+                }
+                return rows;
+            }
+        });
+    }
 
-        if (callback != null) {
-            body = String.format("%s(%s)", callback, json);
-        } else {
-            body = debug ? json.toString(2) : json.toString();
+    /**
+     * A row for a hit with its id, score, sort values and stored fields.
+     */
+    private JSONObject toRow(final Document doc, final ScoreDoc hit) throws JSONException {
+        final JSONObject row = new JSONObject();
+        final JSONObject fields = new JSONObject();
+        for (final IndexableField f : doc.getFields()) {
+            // The revision is only kept to match the document cache.
+            if (!f.fieldType().stored() || DocumentCache.REVISION.equals(f.name())) {
+                continue;
+            }
+            final String name = f.name();
+            final Object value;
+            if (f.numericValue() != null) {
+                value = f.numericValue();
+            } else {
+                value = f.stringValue();
+            }
+            if (value != null) {
+                if ("_id".equals(name)) {
+                    row.put("id", value);
+                } else if (!fields.has(name)) {
+                    fields.put(name, value);
+                } else {
+                    final Object obj = fields.get(name);
+                    if (obj instanceof String || obj instanceof Number) {
+                        final JSONArray arr = new JSONArray();
+                        arr.put(obj);
+                        arr.put(value);
+                        fields.put(name, arr);
+                    } else {
+                        assert obj instanceof JSONArray;
+                        ((JSONArray) obj).put(value);
+                    }
+                }
+            }
+        }
+        if (!Float.isNaN(hit.score)) {
+            row.put("score", hit.score);
+        }
+        if (hit instanceof FieldDoc) {
+            row.put("sort_order", ((FieldDoc) hit).fields);
+        }
+        if (fields.length() > 0) {
+            row.put("fields", fields);
         }
+        return row;
+    }
 
-        final Writer writer = resp.getWriter();
+    /**
+     * Waits for a batch of documents, checking on the client meanwhile,
+     * and writes its rows.
+     */
+    private void writeRows(final Future<List<JSONObject>> fetch, final JSONStreamWriter writer,
+                           final Cancellation cancellation)
+            throws IOException, JSONException {
+        List<JSONObject> rows = null;
         try {
-            writer.write(body);
-        } finally {
-            writer.flush();
-            writer.close();
+            while (rows == null) {
+                try {
+                    rows = fetch.get(getDisconnectCheckInterval(), MILLISECONDS);
+                } catch (final TimeoutException e) {
+                    cancellation.check();
+                }
+            }
+        } catch (final InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while fetching documents.");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Cancellation.CancelledException) {
+                throw (Cancellation.CancelledException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            throw new IOException("Failed to fetch documents.", cause);
+        }
+        for (final JSONObject row : rows) {
+            writer.value(row);
         }
+        writer.flush();
     }
 
     private String[] getQueryStrings(final HttpServletRequest req) {
         return Utils.splitOnCommas(req.getParameter("q"));
     }
 
+    /**
+     * @return the fq parameters, each a query whose matches the hits must
+     * be among.
+     */
+    private String[] getFilterStrings(final HttpServletRequest req) {
+        final String[] result = req.getParameterValues("fq");
+        return result == null ? new String[0] : result;
+    }
+
+    /**
+     * @return the fields named by the counts parameter, a JSON array, or
+     * null if there is none.
+     */
+    private List<String> getCounts(final HttpServletRequest req) throws JSONException {
+        final String param = req.getParameter("counts");
+        if (param == null || param.isEmpty()) {
+            return null;
+        }
+        final JSONArray array = new JSONArray(param);
+        final List<String> result = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            result.add(array.getString(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return a collector for the ranges and histograms parameters, JSON
+     * objects keyed by typed field, or null if there are neither.
+     */
+    private RangeCollector getRanges(final HttpServletRequest req) throws ParseException, JSONException {
+        final String ranges = req.getParameter("ranges");
+        final String histograms = req.getParameter("histograms");
+        if ((ranges == null || ranges.isEmpty()) && (histograms == null || histograms.isEmpty())) {
+            return null;
+        }
+        return new RangeCollector(ranges == null || ranges.isEmpty() ? null : new JSONObject(ranges),
+                histograms == null || histograms.isEmpty() ? null : new JSONObject(histograms));
+    }
+
     private void close() {
         this.closed = true;
 
+        if (refresher != null) {
+            refresher.shutdownNow();
+            try {
+                refresher.awaitTermination(getRefreshInterval(), MILLISECONDS);
+            } catch (final InterruptedException e) {
+                // Ignore.
+            }
+        }
+
+        // The shared worker pool outlives this database.
+        for (final ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+        for (final ExecutorService lane : lanes) {
+            try {
+                lane.awaitTermination(getSearchTimeout(), MILLISECONDS);
+            } catch (final InterruptedException e) {
+                // Ignore.
+            }
+        }
+        lanes.clear();
+
         for (final IndexState state : states.values()) {
             try {
                 state.close();
@@ -695,10 +1776,6 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
             }
         }
         states.clear();
-        if (context != null) {
-            Context.exit();
-            context = null;
-        }
         latch.countDown();
     }
 
@@ -706,22 +1783,90 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return closed;
     }
 
-    private void commitAll() throws IOException {
+    private void commitAll() {
         for (final Entry<View, IndexState> entry : states.entrySet()) {
             final View view = entry.getKey();
             final IndexState state = entry.getValue();
 
-            if (state.pending_seq.isLaterThan(getUpdateSequence(state.writer))) {
-                final Map<String, String> userData = new HashMap<>();
-                userData.put("last_seq", state.pending_seq.toString());
-                state.writer.setCommitData(userData);
-                state.writer.commit();
-                logger.info(view + " now at update_seq " + state.pending_seq);
+            state.commit();
+            final long conversions = state.converters.getConversions();
+            final long converted = conversions - state.lastConversions;
+            state.lastConversions = conversions;
+            if (converted > 0) {
+                final double seconds = (now() - lastCommit) / 1e9;
+                logger.info(String.format("%s converted %d documents (%.1f/s)",
+                        view, converted, converted / seconds));
             }
         }
         lastCommit = now();
     }
 
+    /**
+     * Holds the batch while applying it, so batches reach the lanes in
+     * order whichever thread writes them.
+     */
+    private void flushBatch() {
+        synchronized (batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            final List<Change> changes = new ArrayList<>(batch.values());
+            batch.clear();
+            for (final IndexState state : states.values()) {
+                state.apply(changes);
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException unless a search can return the page
+     *                                  of hits from skip to skip + limit
+     *                                  within timeout milliseconds.
+     */
+    private static void checkPage(final int limit, final int skip, final long timeout) {
+        if (limit < 0 || skip < 0 || timeout < 0) {
+            throw new IllegalArgumentException("limit, skip and timeout can not be negative");
+        }
+        if ((long) skip + limit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("skip + limit is too large");
+        }
+    }
+
+    private static Operator toOperator(final String defaultOperator) {
+        return "and".equalsIgnoreCase(defaultOperator) ? Operator.AND : Operator.OR;
+    }
+
+    /**
+     * Reads a JSON array of at most max values, failing as soon as there
+     * are more instead of reading the rest of it.
+     */
+    private static JSONArray readArray(final Reader reader, final int max, final String what)
+            throws JSONException {
+        final JSONTokener tokener = new JSONTokener(reader);
+        final JSONArray result = new JSONArray();
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            return result;
+        }
+        tokener.back();
+        while (true) {
+            if (result.length() == max) {
+                throw new JSONException("more than " + max + " " + what);
+            }
+            result.put(tokener.nextValue());
+            switch (tokener.nextClean()) {
+                case ',':
+                    break;
+                case ']':
+                    return result;
+                default:
+                    throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
     private boolean getBooleanParameter(final HttpServletRequest req,
                                         final String parameterName) {
         return Boolean.parseBoolean(req.getParameter(parameterName));
@@ -733,6 +1878,18 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return result != null ? Integer.parseInt(result) : defaultValue;
     }
 
+    private long getLongParameter(final HttpServletRequest req,
+                                  final String parameterName, final long defaultValue) {
+        final String result = req.getParameter(parameterName);
+        return result != null ? Long.parseLong(result) : defaultValue;
+    }
+
+    private JSONObject getJsonObjectParameter(final HttpServletRequest req,
+                                              final String parameterName) throws JSONException {
+        final String result = req.getParameter(parameterName);
+        return result == null || result.isEmpty() ? null : new JSONObject(result);
+    }
+
     private IndexState getState(final HttpServletRequest req,
                                 final HttpServletResponse resp) throws IOException, JSONException {
         if ((blacklist()).contains(toDatabaseDocumentPath(req))) {
@@ -775,13 +1932,10 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
     private void init() throws IOException, JSONException {
         this.uuid = database.getOrCreateUuid();
 
-        this.context = Context.enter();
-        context.setClassShutter(new RestrictiveClassShutter());
-        context.setOptimizationLevel(9);
-
         this.ddoc_seq = database.getInfo().getUpdateSequence();
         this.since = null;
 
+        final Set<View> views = new LinkedHashSet<>();
         for (final DesignDocument ddoc : database.getIndexableDesignDocuments(blacklist())) {
 
             for (final Entry<String, View> entry : ddoc.getAllViews()
@@ -789,27 +1943,44 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
                 final String name = entry.getKey();
                 final View view = entry.getValue();
                 paths.put(toPath(ddoc.getId(), name), view);
+                views.add(view);
+            }
+        }
 
-                if (!states.containsKey(view)) {
-                    final Directory dir = FSDirectory.open(viewDir(view, true),
-                            new SingleInstanceLockFactory());
-                    final UpdateSequence seq = getUpdateSequence(dir);
-                    if (since == null) {
-                        since = seq;
-                    }
-                    since = seq.isEarlierThan(since) ? seq : since;
-                    logger.debug(dir + " bumped since to " + since);
-
-                    final DocumentConverter converter = new DocumentConverter(
-                            context, view);
-                    final IndexWriter writer = newWriter(dir);
+        int shardCount = 0;
+        for (final View view : views) {
+            shardCount += view.getShards();
+        }
+        final int laneCount = Math.min(shardCount, getIndexThreads());
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(newLane("indexer-" + uuid + "-" + i));
+        }
 
-                    final IndexState state = new IndexState(converter, writer,
-                            view.getAnalyzer(), database, view);
-                    state.setPendingSequence(seq);
-                    states.put(view, state);
+        int i = 0;
+        for (final View view : views) {
+            final Shard[] shards = new Shard[view.getShards()];
+            UpdateSequence pending = null;
+            for (int j = 0; j < shards.length; j++) {
+                final File dir = shards.length == 1 ?
+                        viewDir(view, true) : new File(viewDir(view, true), "shard-" + j);
+                final Directory shardDir = FSDirectory.open(dir, new SingleInstanceLockFactory());
+                final UpdateSequence seq = getUpdateSequence(shardDir);
+                if (pending == null || seq.isEarlierThan(pending)) {
+                    pending = seq;
+                }
+                if (since == null || seq.isEarlierThan(since)) {
+                    since = seq;
                 }
+                logger.debug(shardDir + " bumped since to " + since);
+
+                final String name = shards.length == 1 ? view.toString() : view + " shard " + j;
+                shards[j] = new Shard(name, newWriter(shardDir), lanes.get(i++ % laneCount), seq);
             }
+
+            final ConverterPool converters = new ConverterPool(view);
+            final IndexState state = new IndexState(converters, shards, database, view);
+            state.setPendingSequence(pending);
+            states.put(view, state);
         }
         if (since == null) {
             since = UpdateSequence.START;
@@ -817,14 +1988,98 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         logger.debug("paths: " + paths);
 
         this.lastCommit = now();
+        startRefresher();
         latch.countDown();
     }
 
+    /**
+     * A lane is a single thread that writes one or more views of this
+     * database so each view sees its changes in order. Documents are
+     * converted on the shared worker pool. Lanes have bounded queues that
+     * block the changes reader when full.
+     */
+    private ExecutorService newLane(final String name) {
+        final ThreadFactory factory = new ThreadFactory() {
+
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, name);
+                result.setDaemon(true);
+                return result;
+            }
+        };
+        return new ThreadPoolExecutor(1, 1, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(getIndexQueueSize()), factory,
+                new RejectedExecutionHandler() {
+
+                    public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException(name + " is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (final InterruptedException e) {
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+    private void fail(final Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void startRefresher() {
+        final String name = "refresher-" + uuid;
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, name);
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        final long interval = getRefreshInterval();
+        refresher.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                for (final IndexState state : states.values()) {
+                    try {
+                        if (state.isReaderDirty()) {
+                            state.refresh();
+                        }
+                    } catch (final AlreadyClosedException e) {
+                        // Closing, nothing to refresh.
+                    } catch (final IOException e) {
+                        logger.warn("Failed to refresh " + state, e);
+                    }
+                }
+            }
+        }, interval, interval, MILLISECONDS);
+
+        // Keep the latest sequence fresh while searches are asking for it.
+        final long maxAge = getLatestSequenceMaxAge();
+        if (maxAge > 0) {
+            final long pollInterval = max(1L, NANOSECONDS.toMicros(maxAge) / 2);
+            refresher.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    try {
+                        latestSequence.poll();
+                    } catch (final IOException | JSONException e) {
+                        logger.warn("Failed to poll the latest update sequence", e);
+                    }
+                }
+            }, pollInterval, pollInterval, MICROSECONDS);
+        }
+    }
+
     private boolean isStaleOk(final HttpServletRequest req) {
         return "ok".equals(req.getParameter("stale"));
     }
 
-    private void maybeCommit() throws IOException {
+    private void maybeCommit() {
         if (now() - lastCommit >= getCommitInterval()) {
             commitAll();
         }
@@ -850,6 +2105,78 @@ public final class DatabaseIndexer implements Runnable, ResponseHandler<Void> {
         return ini.getLong("lucene.timeout", 5000);
     }
 
+    private int getIndexThreads() {
+        return max(1, ini.getInt("lucene.indexThreads",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    private int getBatchSize() {
+        return max(1, ini.getInt("lucene.batchSize", 500));
+    }
+
+    private long getBatchInterval() {
+        return MILLISECONDS.toNanos(max(0L, ini.getLong("lucene.batchInterval", 1000)));
+    }
+
+    private int getParseCacheSize() {
+        return max(0, ini.getInt("lucene.parseCacheSize", 1000));
+    }
+
+    private int getFilterCacheSize() {
+        return max(0, ini.getInt("lucene.filterCacheSize", 100));
+    }
+
+    private long getResultCacheSize() {
+        return max(0L, ini.getLong("lucene.resultCacheSize", 0));
+    }
+
+    private long getDocumentCacheSize() {
+        return max(0L, ini.getLong("lucene.documentCacheSize", 0));
+    }
+
+    private int getFetchThreads() {
+        return max(1, ini.getInt("lucene.fetchThreads", 4));
+    }
+
+    /**
+     * Milliseconds a search may spend collecting hits, or 0 for no limit.
+     */
+    private long getCollectionTimeout() {
+        return max(0L, ini.getLong("lucene.collectionTimeout", 0));
+    }
+
+    /**
+     * Milliseconds between checks that the client of a busy search is
+     * still there.
+     */
+    private long getDisconnectCheckInterval() {
+        return max(1L, ini.getLong("lucene.disconnectCheckInterval", 1000));
+    }
+
+    private int getMaxHistogramBuckets() {
+        return max(1, ini.getInt("lucene.maxHistogramBuckets", 10000));
+    }
+
+    private int getMaxBatchSize() {
+        return max(1, ini.getInt("lucene.maxBatchSize", 100));
+    }
+
+    private int getDocumentBatchSize() {
+        return max(1, ini.getInt("lucene.couchdbDocumentSize", 500));
+    }
+
+    private int getIndexQueueSize() {
+        return max(1, ini.getInt("lucene.indexQueueSize", 1000));
+    }
+
+    private long getRefreshInterval() {
+        return max(1L, ini.getLong("lucene.refreshInterval", 1000));
+    }
+
+    private long getLatestSequenceMaxAge() {
+        return MILLISECONDS.toNanos(max(0L, ini.getLong("lucene.latestSequenceMaxAge", 0)));
+    }
+
     private long getCommitInterval() {
         final long commitSeconds = max(1L, ini
                 .getLong("lucene.commitEvery", 15));
@@ -0,0 +1,208 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recently fetched documents of one database, for include_docs. Searches
+ * put the documents they fetch from CouchDB, and the changes feed only
+ * removes documents that have been updated or deleted since, so indexing
+ * does no more than a map lookup per change. While the cache is enabled
+ * the revision of each document is also stored in the index, and a
+ * document is only served for a hit of that same revision, so a search of
+ * an older or newer snapshot of the index asks CouchDB instead.
+ * Bodies are kept as UTF-8 JSON and the least recently used ones are
+ * evicted to stay within a byte budget.
+ *
+ * @author rnewson
+ */
+public final class DocumentCache {
+
+    /**
+     * The stored field that holds the revision a document was indexed at.
+     * It is internal, so its name must not clash with the fields of index
+     * functions, and it is left out of search results.
+     */
+    public static final String REVISION = "_couchdb_lucene_rev";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Rough cost of the map entry, key and bookkeeping of each document.
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final class Entry {
+
+        private final String rev;
+        private final byte[] body;
+        private final long size;
+
+        private Entry(final String id, final String rev, final byte[] body) {
+            this.rev = rev;
+            this.body = body;
+            this.size = ENTRY_OVERHEAD + 2L * (id.length() + (rev == null ? 0 : rev.length())) + body.length;
+        }
+    }
+
+    private final long capacity;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param capacity the byte budget, or zero to cache nothing.
+     */
+    public DocumentCache(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Stores the revision of the document in every Lucene document it was
+     * converted into, unless the cache is disabled and would never use it.
+     */
+    public void addRevision(final Collection<Document> docs, final CouchDocument doc) {
+        final String rev = doc.getRevision();
+        if (!isEnabled() || rev == null) {
+            return;
+        }
+        final StoredField field = new StoredField(REVISION, rev);
+        for (final Document result : docs) {
+            result.add(field);
+        }
+    }
+
+    /**
+     * Replaces any cached revision of the document, or removes it if the
+     * document is deleted or too big to cache.
+     */
+    public void put(final CouchDocument doc) throws JSONException {
+        if (!isEnabled()) {
+            return;
+        }
+        final String id = doc.getId();
+        if (doc.isDeleted()) {
+            remove(id);
+            return;
+        }
+        final byte[] bytes = doc.asJson().toString().getBytes(UTF_8);
+        if (bytes.length > capacity / 8) {
+            remove(id);
+            return;
+        }
+        final Entry entry = new Entry(id, doc.getRevision(), bytes);
+        synchronized (this) {
+            final Entry old = entries.put(id, entry);
+            if (old != null) {
+                size -= old.size;
+                invalidations.incrementAndGet();
+            }
+            size += entry.size;
+            evict();
+        }
+    }
+
+    /**
+     * Removes the document, for a change read from the changes feed, unless
+     * the cache already holds that revision of it.
+     */
+    public void invalidate(final CouchDocument doc) throws JSONException {
+        if (!isEnabled()) {
+            return;
+        }
+        final String id = doc.getId();
+        synchronized (this) {
+            final Entry entry = entries.get(id);
+            if (entry != null && (doc.isDeleted() || entry.rev == null || !entry.rev.equals(doc.getRevision()))) {
+                remove(id);
+            }
+        }
+    }
+
+    public synchronized void remove(final String id) {
+        final Entry old = entries.remove(id);
+        if (old != null) {
+            size -= old.size;
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param rev the revision that was indexed.
+     * @return a copy of the cached document, or null if it is not cached
+     * at that revision.
+     */
+    public JSONObject get(final String id, final String rev) throws JSONException {
+        final Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+        }
+        if (entry == null || rev == null || !rev.equals(entry.rev)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new JSONObject(new String(entry.body, UTF_8));
+    }
+
+    public JSONObject getStats() throws JSONException {
+        final JSONObject result = new JSONObject();
+        synchronized (this) {
+            result.put("entries", entries.size());
+            result.put("bytes", size);
+        }
+        result.put("capacity", capacity);
+        result.put("hits", hits.get());
+        result.put("misses", misses.get());
+        result.put("evictions", evictions.get());
+        result.put("invalidations", invalidations.get());
+        return result;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue().size;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+}
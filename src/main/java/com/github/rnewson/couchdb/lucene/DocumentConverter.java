@@ -21,13 +21,12 @@ import com.github.rnewson.couchdb.lucene.couchdb.Database;
 import com.github.rnewson.couchdb.lucene.couchdb.View;
 import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
 import com.github.rnewson.couchdb.lucene.rhino.JSLog;
+import com.github.rnewson.couchdb.lucene.rhino.LazyJSONObject;
 import com.github.rnewson.couchdb.lucene.rhino.RhinoDocument;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.queryparser.classic.ParseException;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.mozilla.javascript.*;
 
 import java.io.IOException;
@@ -35,7 +34,6 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 
 public final class DocumentConverter {
 
@@ -48,7 +46,29 @@ public final class DocumentConverter {
 
     public DocumentConverter(final Context context, final View view) throws IOException, JSONException {
         this.context = context;
-        scope = context.initStandardObjects();
+        scope = newScope(context);
+
+        // Compile user-specified function
+        try {
+            viewFun = view.compileFunction(context, scope);
+        } catch (final RhinoException e) {
+            LOG.error("View code for " + view + " does not compile.");
+            throw e;
+        }
+    }
+
+    /**
+     * Binds a view function that was compiled once with
+     * {@link View#compileScript(Context)} to a new scope in this context.
+     */
+    public DocumentConverter(final Context context, final Script script) {
+        this.context = context;
+        scope = newScope(context);
+        viewFun = (Function) script.exec(context, scope);
+    }
+
+    private static ScriptableObject newScope(final Context context) {
+        final ScriptableObject scope = context.initStandardObjects();
         context.setLanguageVersion(Context.VERSION_1_8);
 
         // Allow custom document helper class.
@@ -64,14 +84,7 @@ public final class DocumentConverter {
 
         // Add a log object
         ScriptableObject.putProperty(scope, "log", new JSLog());
-
-        // Compile user-specified function
-        try {
-            viewFun = view.compileFunction(context, scope);
-        } catch (final RhinoException e) {
-            LOG.error("View code for " + view + " does not compile.");
-            throw e;
-        }
+        return scope;
     }
 
     public Collection<Document> convert(
@@ -79,7 +92,7 @@ public final class DocumentConverter {
             final ViewSettings defaults,
             final Database database) throws IOException, ParseException, JSONException {
         final Object result;
-        final Scriptable scriptable = convertObject(doc.asJson());
+        final Scriptable scriptable = new LazyJSONObject(doc.asJson(), scope);
 
         try {
             result = viewFun.call(context, scope, null, new Object[]{scriptable});
@@ -117,38 +130,4 @@ public final class DocumentConverter {
         return null;
     }
 
-    private Object convert(final Object obj) throws JSONException {
-        if (obj instanceof JSONArray) {
-            return convertArray((JSONArray) obj);
-        } else if (obj == JSONObject.NULL) {
-            return null;
-        } else if (obj instanceof JSONObject) {
-            return convertObject((JSONObject) obj);
-        } else {
-            return obj;
-        }
-    }
-
-    private Scriptable convertArray(final JSONArray array) throws JSONException {
-        final Scriptable result = context.newArray(scope, array.length());
-        for (int i = 0, max = array.length(); i < max; i++) {
-            ScriptableObject.putProperty(result, i, convert(array.get(i)));
-        }
-        return result;
-    }
-
-    private Scriptable convertObject(final JSONObject obj) throws JSONException {
-        if (obj == JSONObject.NULL) {
-            return null;
-        }
-        final Scriptable result = context.newObject(scope);
-        final Iterator<?> it = obj.keys();
-        while (it.hasNext()) {
-            final String key = (String) it.next();
-            final Object value = obj.get(key);
-            ScriptableObject.putProperty(result, key, convert(value));
-        }
-        return result;
-    }
-
 }
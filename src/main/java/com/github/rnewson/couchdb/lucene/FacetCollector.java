@@ -0,0 +1,202 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiDocValues.OrdinalMap;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.PackedInts;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the hits for each value of some facet fields, from the doc values
+ * written for fields added with facet:"yes". Ordinals of every segment are
+ * mapped to ordinals of the whole reader, so each field is counted in one
+ * int array however many hits there are. The ordinal maps are built once
+ * per reader and dropped when it is closed.
+ *
+ * @author rnewson
+ */
+public final class FacetCollector extends Collector {
+
+    private static final Map<IndexReader, Map<String, OrdinalMap>> ORDINAL_MAPS = new HashMap<>();
+
+    private static final IndexReader.ReaderClosedListener EVICT = new IndexReader.ReaderClosedListener() {
+
+        public void onClose(final IndexReader reader) {
+            synchronized (ORDINAL_MAPS) {
+                ORDINAL_MAPS.remove(reader);
+            }
+        }
+    };
+
+    private final List<AtomicReaderContext> leaves;
+
+    private final String[] fields;
+
+    // Per field, or null if the reader has at most one segment.
+    private final OrdinalMap[] maps;
+
+    private final int[][] counts;
+
+    private final SortedSetDocValues[] values;
+
+    private final LongValues[] globalOrds;
+
+    public FacetCollector(final IndexReader reader, final List<String> fields) throws IOException {
+        this.leaves = reader.leaves();
+        this.fields = fields.toArray(new String[fields.size()]);
+        this.maps = new OrdinalMap[this.fields.length];
+        this.counts = new int[this.fields.length][];
+        this.values = new SortedSetDocValues[this.fields.length];
+        this.globalOrds = new LongValues[this.fields.length];
+        for (int i = 0; i < this.fields.length; i++) {
+            final long valueCount;
+            if (leaves.isEmpty()) {
+                valueCount = 0;
+            } else if (leaves.size() == 1) {
+                valueCount = getValues(0, this.fields[i]).getValueCount();
+            } else {
+                maps[i] = getOrdinalMap(reader, this.fields[i]);
+                valueCount = maps[i].getValueCount();
+            }
+            counts[i] = new int[(int) valueCount];
+        }
+    }
+
+    /**
+     * Checks, before collecting, that every field was written with facet
+     * doc values in each segment that has it. A field that no segment has
+     * yet simply has no counts.
+     *
+     * @throws ParseException naming the first field that was not.
+     */
+    public static void checkFields(final IndexReader reader, final List<String> fields) throws ParseException {
+        for (final String field : fields) {
+            for (final AtomicReaderContext leaf : reader.leaves()) {
+                final FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(field);
+                if (info == null) {
+                    continue;
+                }
+                final DocValuesType type = info.getDocValuesType();
+                if (type != DocValuesType.SORTED_SET && type != DocValuesType.SORTED) {
+                    throw new ParseException("field " + field + " is not faceted");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setScorer(final Scorer scorer) {
+        // Counts do not depend on scores.
+    }
+
+    @Override
+    public void collect(final int doc) {
+        for (int i = 0; i < fields.length; i++) {
+            final SortedSetDocValues dv = values[i];
+            final int[] fieldCounts = counts[i];
+            final LongValues map = globalOrds[i];
+            dv.setDocument(doc);
+            long ord;
+            while ((ord = dv.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+                fieldCounts[(int) (map == null ? ord : map.get(ord))]++;
+            }
+        }
+    }
+
+    @Override
+    public void setNextReader(final AtomicReaderContext context) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            values[i] = DocValues.getSortedSet(context.reader(), fields[i]);
+            globalOrds[i] = maps[i] == null ? null : maps[i].getGlobalOrds(context.ord);
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    /**
+     * @return for each field, the hits for each value that has any.
+     */
+    public JSONObject getCounts() throws IOException, JSONException {
+        final JSONObject result = new JSONObject();
+        for (int i = 0; i < fields.length; i++) {
+            final SortedSetDocValues[] leafValues = new SortedSetDocValues[leaves.size()];
+            final JSONObject fieldCounts = new JSONObject();
+            for (int ord = 0; ord < counts[i].length; ord++) {
+                if (counts[i][ord] == 0) {
+                    continue;
+                }
+                final int leaf = maps[i] == null ? 0 : maps[i].getFirstSegmentNumber(ord);
+                final long leafOrd = maps[i] == null ? ord : maps[i].getFirstSegmentOrd(ord);
+                if (leafValues[leaf] == null) {
+                    leafValues[leaf] = getValues(leaf, fields[i]);
+                }
+                fieldCounts.put(leafValues[leaf].lookupOrd(leafOrd).utf8ToString(), counts[i][ord]);
+            }
+            result.put(fields[i], fieldCounts);
+        }
+        return result;
+    }
+
+    private SortedSetDocValues getValues(final int leaf, final String field) throws IOException {
+        return DocValues.getSortedSet(leaves.get(leaf).reader(), field);
+    }
+
+    private OrdinalMap getOrdinalMap(final IndexReader reader, final String field) throws IOException {
+        final Map<String, OrdinalMap> readerMaps;
+        synchronized (ORDINAL_MAPS) {
+            Map<String, OrdinalMap> existing = ORDINAL_MAPS.get(reader);
+            if (existing == null) {
+                existing = new HashMap<>();
+                ORDINAL_MAPS.put(reader, existing);
+                reader.addReaderClosedListener(EVICT);
+            }
+            readerMaps = existing;
+        }
+        synchronized (readerMaps) {
+            OrdinalMap result = readerMaps.get(field);
+            if (result == null) {
+                final SortedSetDocValues[] subs = new SortedSetDocValues[leaves.size()];
+                for (int i = 0; i < subs.length; i++) {
+                    subs[i] = getValues(i, field);
+                }
+                result = OrdinalMap.build(reader.getCoreCacheKey(), subs, PackedInts.DEFAULT);
+                readerMaps.put(field, result);
+            }
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import com.github.rnewson.couchdb.lucene.couchdb.UpdateSequence;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latest update sequence of a database as far as we know. Searches that
+ * are not stale=ok need it to decide what to wait for.
+ * <p/>
+ * A caller gets a value that was current at some point after it arrived,
+ * less the maximum age. Callers that arrive while a request to CouchDB is
+ * already running wait for it and then share the next one, so a burst of
+ * searches costs about one request per round trip rather than one each. The
+ * continuous changes feed keeps the value moving between requests.
+ *
+ * @author rnewson
+ */
+public final class LatestSequence {
+
+    private final class Fetch extends FutureTask<UpdateSequence> {
+
+        private final long start;
+
+        private Fetch(final long start) {
+            super(new Callable<UpdateSequence>() {
+
+                public UpdateSequence call() throws Exception {
+                    final UpdateSequence seq = database.getLastSequence();
+                    fetches.incrementAndGet();
+                    return seq;
+                }
+            });
+            this.start = start;
+        }
+
+        @Override
+        protected void done() {
+            synchronized (LatestSequence.this) {
+                if (inflight == this) {
+                    inflight = null;
+                }
+            }
+        }
+
+    }
+
+    private final Database database;
+
+    private final long maxAge;
+
+    private final AtomicBoolean demanded = new AtomicBoolean();
+
+    private final AtomicLong fetches = new AtomicLong();
+
+    private final AtomicLong cached = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private UpdateSequence latest;
+
+    // System.nanoTime() when latest was known to be current, if ever.
+    private long observedAt;
+
+    private boolean observed;
+
+    private Fetch inflight;
+
+    /**
+     * @param maxAge how long, in nanoseconds, a value may be reused.
+     */
+    public LatestSequence(final Database database, final long maxAge) {
+        this.database = database;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns a sequence that was current no more than the maximum age
+     * before this call, asking CouchDB if needed.
+     */
+    public UpdateSequence get() throws IOException, JSONException {
+        demanded.set(true);
+        final long notBefore = System.nanoTime() - maxAge;
+        synchronized (this) {
+            if (observed && observedAt - notBefore >= 0) {
+                cached.incrementAndGet();
+                return latest;
+            }
+        }
+        return fetch(notBefore);
+    }
+
+    /**
+     * Asks CouchDB again if any searches wanted the latest sequence since
+     * the last poll, so that they find a fresh value waiting.
+     */
+    public void poll() throws IOException, JSONException {
+        if (demanded.getAndSet(false)) {
+            fetch(System.nanoTime());
+        }
+    }
+
+    /**
+     * Records a sequence seen on the changes feed.
+     */
+    public synchronized void observe(final UpdateSequence seq) {
+        if (latest == null || seq.isLaterThan(latest)) {
+            latest = seq;
+        }
+    }
+
+    /**
+     * The changes feed has nothing more to send, so the last sequence it
+     * sent is current.
+     */
+    public synchronized void caughtUp() {
+        if (latest != null) {
+            observedAt = System.nanoTime();
+            observed = true;
+        }
+    }
+
+    public JSONObject getStats() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("fetches", fetches.get());
+        result.put("cached", cached.get());
+        result.put("coalesced", coalesced.get());
+        return result;
+    }
+
+    private UpdateSequence fetch(final long notBefore) throws IOException, JSONException {
+        while (true) {
+            final Fetch fetch;
+            final boolean owner;
+            synchronized (this) {
+                if (inflight == null || inflight.isDone()) {
+                    inflight = new Fetch(System.nanoTime());
+                    owner = true;
+                } else {
+                    owner = false;
+                }
+                fetch = inflight;
+            }
+            if (owner) {
+                fetch.run();
+                return result(fetch);
+            }
+            if (fetch.start - notBefore >= 0) {
+                coalesced.incrementAndGet();
+                return result(fetch);
+            }
+            // Started too early to count, wait for it and share the next.
+            try {
+                fetch.get();
+            } catch (final ExecutionException e) {
+                // Try again.
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the latest sequence.", e);
+            }
+        }
+    }
+
+    private synchronized UpdateSequence update(final UpdateSequence seq, final long start) {
+        if (latest == null || !seq.isEarlierThan(latest)) {
+            latest = seq;
+        }
+        if (!observed || start - observedAt > 0) {
+            observedAt = start;
+            observed = true;
+        }
+        return latest;
+    }
+
+    private UpdateSequence result(final Fetch fetch) throws IOException, JSONException {
+        try {
+            return update(fetch.get(), fetch.start);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the latest sequence.", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+}
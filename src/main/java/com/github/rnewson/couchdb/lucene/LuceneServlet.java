@@ -49,6 +49,10 @@ public final class LuceneServlet extends HttpServlet {
 
     private final HttpClient client;
 
+    private final SearchPool searchPool;
+
+    private final WorkerPool workerPool;
+
     private final Map<Database, DatabaseIndexer> indexers = new HashMap<Database, DatabaseIndexer>();
 
     private final HierarchicalINIConfiguration ini;
@@ -62,6 +66,8 @@ public final class LuceneServlet extends HttpServlet {
         this.client = config.getClient();
         this.root = config.getDir();
         this.ini = config.getConfiguration();
+        this.searchPool = new SearchPool(ini);
+        this.workerPool = new WorkerPool(ini);
     }
 
     public LuceneServlet(final HttpClient client, final File root,
@@ -69,6 +75,14 @@ public final class LuceneServlet extends HttpServlet {
         this.client = client;
         this.root = root;
         this.ini = ini;
+        this.searchPool = new SearchPool(ini);
+        this.workerPool = new WorkerPool(ini);
+    }
+
+    @Override
+    public void destroy() {
+        searchPool.shutdown();
+        workerPool.shutdown();
     }
 
     private void cleanup(final HttpServletRequest req,
@@ -130,7 +144,7 @@ public final class LuceneServlet extends HttpServlet {
         DatabaseIndexer result = indexers.get(database);
         Thread thread = threads.get(database);
         if (result == null || thread == null || !thread.isAlive()) {
-            result = new DatabaseIndexer(client, root, database, ini);
+            result = new DatabaseIndexer(client, root, database, ini, searchPool, workerPool);
             thread = new Thread(result);
             thread.start();
             result.awaitInitialization();
@@ -187,7 +201,7 @@ public final class LuceneServlet extends HttpServlet {
                     return;
                 }
 
-                if (req.getParameter("q") == null) {
+                if (req.getParameter("q") == null && req.getParameter("template") == null) {
                     indexer.info(req, resp);
                 } else {
                     indexer.search(req, resp);
@@ -217,6 +231,15 @@ public final class LuceneServlet extends HttpServlet {
                     cleanup(req, resp);
                     return;
                 }
+                if (req.getPathInfo().endsWith("/_batch")) {
+                    final DatabaseIndexer indexer = getIndexer(req);
+                    if (indexer == null) {
+                        ServletUtils.sendJsonError(req, resp, 500, "error_creating_index");
+                        return;
+                    }
+                    indexer.batch(req, resp);
+                    return;
+                }
                 break;
             case 5: {
                 final DatabaseIndexer indexer = getIndexer(req);
@@ -0,0 +1,152 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A query named in a view's queries, such as "owner:$owner AND
+ * status:$status". The template is split into text and parameters once;
+ * binding only joins the pieces. Each value is escaped, and quoted if it
+ * has spaces or is an operator such as OR, so it is always a single term
+ * or phrase of the query and can not change its structure. A parameter
+ * inside a quoted phrase, such as title:"$title", is already quoted, so
+ * only the quotes and backslashes of its value are escaped.
+ *
+ * @author rnewson
+ */
+public final class QueryTemplate {
+
+    // Words the query parser reads as operators, unless quoted.
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("AND", "OR", "NOT", "TO"));
+
+    private final String source;
+
+    // Literal text and parameter names, alternating, starting with text.
+    private final List<String> parts = new ArrayList<>();
+
+    // For each parameter, whether it is inside a quoted phrase.
+    private final List<Boolean> quoted = new ArrayList<>();
+
+    /**
+     * @throws ParseException if a $ is not followed by a parameter name or
+     *                        another $.
+     */
+    public QueryTemplate(final String source) throws ParseException {
+        this.source = source;
+        final StringBuilder text = new StringBuilder();
+        boolean phrase = false;
+        int i = 0;
+        while (i < source.length()) {
+            final char c = source.charAt(i++);
+            if (c == '\\' && i < source.length() && (source.charAt(i) == '"' || source.charAt(i) == '\\')) {
+                // An escaped quote does not start or end a phrase.
+                text.append(c).append(source.charAt(i++));
+                continue;
+            }
+            if (c != '$') {
+                if (c == '"') {
+                    phrase = !phrase;
+                }
+                text.append(c);
+                continue;
+            }
+            if (i < source.length() && source.charAt(i) == '$') {
+                text.append('$');
+                i++;
+                continue;
+            }
+            final int start = i;
+            while (i < source.length() && isNameChar(source.charAt(i), i == start)) {
+                i++;
+            }
+            if (i == start) {
+                throw new ParseException("Query template '" + source + "' has a $ without a parameter name.");
+            }
+            parts.add(text.toString());
+            parts.add(source.substring(start, i));
+            quoted.add(phrase);
+            text.setLength(0);
+        }
+        parts.add(text.toString());
+    }
+
+    /**
+     * @return the names of the parameters, in order of appearance.
+     */
+    public List<String> getParameters() {
+        final List<String> result = new ArrayList<>();
+        for (int i = 1; i < parts.size(); i += 2) {
+            result.add(parts.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @throws ParseException if a parameter has no value.
+     */
+    public String bind(final JSONObject params) throws ParseException {
+        final StringBuilder result = new StringBuilder(source.length() + 32);
+        for (int i = 0; i < parts.size(); i++) {
+            if (i % 2 == 0) {
+                result.append(parts.get(i));
+                continue;
+            }
+            final String name = parts.get(i);
+            final Object value = params == null ? null : params.opt(name);
+            if (value == null || value == JSONObject.NULL) {
+                throw new ParseException("Query template parameter '" + name + "' has no value.");
+            }
+            result.append(quoted.get(i / 2) ? toPhrase(value.toString()) : toTerm(value.toString()));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private static String toTerm(final String value) {
+        if (value.isEmpty() || KEYWORDS.contains(value)) {
+            return '"' + value + '"';
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isWhitespace(value.charAt(i))) {
+                return '"' + toPhrase(value) + '"';
+            }
+        }
+        return QueryParser.escape(value);
+    }
+
+    private static String toPhrase(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static boolean isNameChar(final char c, final boolean first) {
+        return c == '_' || (first ? Character.isLetter(c) : Character.isLetterOrDigit(c));
+    }
+
+}
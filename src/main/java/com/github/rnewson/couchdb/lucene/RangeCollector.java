@@ -0,0 +1,461 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.NumericUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Aggregates numeric and date fields over every hit: count, min, max, sum
+ * and average, hits per named range and hits per fixed-width interval.
+ * Values are read through the FieldCache, as sorting does, so no extra
+ * index structures are needed. Fields are named as for sorting, with their
+ * type, e.g. price&lt;float&gt;; a document contributes one value of
+ * each field. Int, long and date fields are summed and bucketed as longs,
+ * so they stay exact beyond the 53 bits of a double.
+ *
+ * @author rnewson
+ */
+public final class RangeCollector extends Collector {
+
+    private static final Pattern RANGE = Pattern.compile("^\\s*([\\[{])\\s*(\\S+)\\s+TO\\s+(\\S+)\\s*([\\]}])\\s*$");
+
+    private static final Pattern DURATION = Pattern.compile("^(\\d+)(ms|s|m|h|d|w)$");
+
+    /**
+     * The values of one field in the current segment.
+     */
+    private static abstract class Values {
+        abstract double get(int doc);
+
+        long getLong(final int doc) {
+            return (long) get(doc);
+        }
+    }
+
+    /**
+     * The values of an int, long or date field in the current segment.
+     */
+    private static abstract class LongValues extends Values {
+        double get(final int doc) {
+            return getLong(doc);
+        }
+
+        abstract long getLong(int doc);
+    }
+
+    private static final class Aggregate {
+
+        private final String key;
+        private final TypedField field;
+
+        private final String[] labels;
+        private final double[] lowers;
+        private final double[] uppers;
+        private final boolean[] lowerInclusive;
+        private final boolean[] upperInclusive;
+        private final int[] bucketCounts;
+
+        private final double interval;
+        // The interval of an integral field, if it is a whole number.
+        private final long longInterval;
+        private final Map<Long, int[]> histogram = new HashMap<>();
+
+        private final boolean integral;
+
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum;
+        private long longMin = Long.MAX_VALUE;
+        private long longMax = Long.MIN_VALUE;
+        private long longSum;
+
+        private Values values;
+        private Bits docsWithField;
+
+        private Aggregate(final String key, final JSONObject ranges, final double interval)
+                throws ParseException, JSONException {
+            this.key = key;
+            this.field = new TypedField(key);
+            if (field.getType() == FieldType.STRING) {
+                throw new ParseException("'" + key + "' is not a numeric or date field.");
+            }
+            final int size = ranges == null ? 0 : ranges.length();
+            labels = new String[size];
+            lowers = new double[size];
+            uppers = new double[size];
+            lowerInclusive = new boolean[size];
+            upperInclusive = new boolean[size];
+            bucketCounts = new int[size];
+            final JSONArray names = size == 0 ? null : ranges.names();
+            for (int i = 0; i < size; i++) {
+                labels[i] = names.getString(i);
+                final String range = ranges.getString(labels[i]);
+                final Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches()) {
+                    throw new ParseException("Range '" + range + "' not recognized.");
+                }
+                lowerInclusive[i] = "[".equals(matcher.group(1));
+                lowers[i] = toBound(matcher.group(2), Double.NEGATIVE_INFINITY);
+                uppers[i] = toBound(matcher.group(3), Double.POSITIVE_INFINITY);
+                upperInclusive[i] = "]".equals(matcher.group(4));
+            }
+            this.interval = interval;
+            this.integral = field.getType() != FieldType.FLOAT && field.getType() != FieldType.DOUBLE;
+            this.longInterval = integral && interval == Math.rint(interval) && interval < Long.MAX_VALUE
+                    ? (long) interval : 0;
+        }
+
+        private void collect(final int doc) {
+            if (!docsWithField.get(doc)) {
+                return;
+            }
+            final double value = values.get(doc);
+            count++;
+            if (integral) {
+                final long exact = values.getLong(doc);
+                longSum += exact;
+                longMin = Math.min(longMin, exact);
+                longMax = Math.max(longMax, exact);
+            } else {
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            for (int i = 0; i < labels.length; i++) {
+                if ((lowerInclusive[i] ? value >= lowers[i] : value > lowers[i])
+                        && (upperInclusive[i] ? value <= uppers[i] : value < uppers[i])) {
+                    bucketCounts[i]++;
+                }
+            }
+            if (interval > 0) {
+                final Long bucket = longInterval > 0
+                        ? floorDiv(values.getLong(doc), longInterval)
+                        : (long) Math.floor(value / interval);
+                final int[] counter = histogram.get(bucket);
+                if (counter == null) {
+                    histogram.put(bucket, new int[]{1});
+                } else {
+                    counter[0]++;
+                }
+            }
+        }
+
+        private void setNextReader(final AtomicReader reader) throws IOException {
+            final String name = field.getName();
+            switch (field.getType()) {
+                case INT:
+                    final FieldCache.Ints ints = FieldCache.DEFAULT.getInts(reader, name,
+                            FieldCache.NUMERIC_UTILS_INT_PARSER, true);
+                    values = new LongValues() {
+                        long getLong(final int doc) {
+                            return ints.get(doc);
+                        }
+                    };
+                    break;
+                case FLOAT:
+                    final FieldCache.Floats floats = FieldCache.DEFAULT.getFloats(reader, name,
+                            FieldCache.NUMERIC_UTILS_FLOAT_PARSER, true);
+                    values = new Values() {
+                        double get(final int doc) {
+                            return floats.get(doc);
+                        }
+                    };
+                    break;
+                case DOUBLE:
+                    final FieldCache.Doubles doubles = FieldCache.DEFAULT.getDoubles(reader, name,
+                            FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true);
+                    values = new Values() {
+                        double get(final int doc) {
+                            return doubles.get(doc);
+                        }
+                    };
+                    break;
+                default:
+                    final FieldCache.Longs longs = FieldCache.DEFAULT.getLongs(reader, name,
+                            FieldCache.NUMERIC_UTILS_LONG_PARSER, true);
+                    values = new LongValues() {
+                        long getLong(final int doc) {
+                            return longs.get(doc);
+                        }
+                    };
+                    break;
+            }
+            docsWithField = FieldCache.DEFAULT.getDocsWithField(reader, name);
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            final JSONObject result = new JSONObject();
+            result.put("count", count);
+            if (count > 0 && integral) {
+                result.put("min", longMin);
+                result.put("max", longMax);
+                result.put("sum", longSum);
+                result.put("avg", (double) longSum / count);
+            } else if (count > 0) {
+                result.put("min", toNumber(min));
+                result.put("max", toNumber(max));
+                result.put("sum", toNumber(sum));
+                result.put("avg", sum / count);
+            }
+            if (labels.length > 0) {
+                final JSONObject buckets = new JSONObject();
+                for (int i = 0; i < labels.length; i++) {
+                    buckets.put(labels[i], bucketCounts[i]);
+                }
+                result.put("buckets", buckets);
+            }
+            if (interval > 0) {
+                final JSONArray rows = new JSONArray();
+                for (final Map.Entry<Long, int[]> entry : new TreeMap<>(histogram).entrySet()) {
+                    final JSONObject row = new JSONObject();
+                    row.put("key", longInterval > 0
+                            ? entry.getKey() * longInterval : toNumber(entry.getKey() * interval));
+                    row.put("count", entry.getValue()[0]);
+                    rows.put(row);
+                }
+                result.put("histogram", rows);
+            }
+            return result;
+        }
+
+        /**
+         * @return at most how many buckets the histogram can have, from the
+         * smallest and largest values of the field in the index.
+         */
+        private double maxBuckets(final IndexReader reader) throws IOException {
+            final Terms terms = MultiFields.getTerms(reader, field.getName());
+            if (interval <= 0 || terms == null) {
+                return 0;
+            }
+            final double lowest;
+            final double highest;
+            try {
+                switch (field.getType()) {
+                    case INT:
+                        lowest = NumericUtils.getMinInt(terms);
+                        highest = NumericUtils.getMaxInt(terms);
+                        break;
+                    case FLOAT:
+                        lowest = NumericUtils.sortableIntToFloat(NumericUtils.getMinInt(terms));
+                        highest = NumericUtils.sortableIntToFloat(NumericUtils.getMaxInt(terms));
+                        break;
+                    case DOUBLE:
+                        lowest = NumericUtils.sortableLongToDouble(NumericUtils.getMinLong(terms));
+                        highest = NumericUtils.sortableLongToDouble(NumericUtils.getMaxLong(terms));
+                        break;
+                    default:
+                        lowest = NumericUtils.getMinLong(terms);
+                        highest = NumericUtils.getMaxLong(terms);
+                        break;
+                }
+            } catch (final NumberFormatException e) {
+                // Not a numeric field; collecting it finds nothing to bucket either.
+                return 0;
+            }
+            return Math.floor(highest / interval) - Math.floor(lowest / interval) + 1;
+        }
+
+        private double toBound(final String str, final double unbounded) throws ParseException {
+            if ("*".equals(str)) {
+                return unbounded;
+            }
+            return toDouble(field.getType(), str);
+        }
+    }
+
+    private final List<Aggregate> aggregates = new ArrayList<>();
+
+    /**
+     * @param ranges     named ranges per field, e.g. {"price&lt;float&gt;":
+     *                   {"cheap": "[0 TO 10}", "dear": "[10 TO *]"}}, or null.
+     * @param histograms an interval per field, e.g. {"created&lt;date&gt;":
+     *                   "1d"}, or null.
+     * @throws ParseException if a field, range or interval is not valid.
+     */
+    public RangeCollector(final JSONObject ranges, final JSONObject histograms)
+            throws ParseException, JSONException {
+        final Map<String, JSONObject> fieldRanges = new TreeMap<>();
+        final Map<String, Double> intervals = new HashMap<>();
+        if (ranges != null) {
+            final Iterator<?> it = ranges.keys();
+            while (it.hasNext()) {
+                final String key = (String) it.next();
+                fieldRanges.put(key, ranges.getJSONObject(key));
+            }
+        }
+        if (histograms != null) {
+            final Iterator<?> it = histograms.keys();
+            while (it.hasNext()) {
+                final String key = (String) it.next();
+                if (!fieldRanges.containsKey(key)) {
+                    fieldRanges.put(key, null);
+                }
+                intervals.put(key, toInterval(new TypedField(key).getType(), histograms.getString(key)));
+            }
+        }
+        for (final Map.Entry<String, JSONObject> entry : fieldRanges.entrySet()) {
+            final Double interval = intervals.get(entry.getKey());
+            aggregates.add(new Aggregate(entry.getKey(), entry.getValue(), interval == null ? 0 : interval));
+        }
+    }
+
+    /**
+     * Checks, before collecting, that no histogram could have more than max
+     * buckets, however narrow its interval.
+     *
+     * @throws ParseException if one could.
+     */
+    public void checkBuckets(final IndexReader reader, final int max) throws ParseException, IOException {
+        for (final Aggregate aggregate : aggregates) {
+            final double buckets = aggregate.maxBuckets(reader);
+            if (buckets > max) {
+                throw new ParseException(String.format("Histogram of '%s' could have %.0f buckets, more than %d.",
+                        aggregate.key, buckets, max));
+            }
+        }
+    }
+
+    @Override
+    public void setScorer(final Scorer scorer) {
+        // Aggregates do not depend on scores.
+    }
+
+    @Override
+    public void collect(final int doc) {
+        for (final Aggregate aggregate : aggregates) {
+            aggregate.collect(doc);
+        }
+    }
+
+    @Override
+    public void setNextReader(final AtomicReaderContext context) throws IOException {
+        for (final Aggregate aggregate : aggregates) {
+            aggregate.setNextReader(context.reader());
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+
+    public JSONObject getRanges() throws JSONException {
+        final JSONObject result = new JSONObject();
+        for (final Aggregate aggregate : aggregates) {
+            result.put(aggregate.key, aggregate.toJSON());
+        }
+        return result;
+    }
+
+    private static double toDouble(final FieldType type, final String str) throws ParseException {
+        if (type == FieldType.DATE) {
+            return FieldType.toDate(str);
+        }
+        try {
+            return Double.parseDouble(str);
+        } catch (final NumberFormatException e) {
+            throw new ParseException("'" + str + "' is not a number.");
+        }
+    }
+
+    /**
+     * Intervals of dates may also be durations such as 30m or 1d.
+     */
+    private static double toInterval(final FieldType type, final String str) throws ParseException {
+        final Matcher matcher = DURATION.matcher(str);
+        final double result;
+        if (type == FieldType.DATE && matcher.matches()) {
+            final long n = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ms":
+                    result = n;
+                    break;
+                case "s":
+                    result = TimeUnit.SECONDS.toMillis(n);
+                    break;
+                case "m":
+                    result = TimeUnit.MINUTES.toMillis(n);
+                    break;
+                case "h":
+                    result = TimeUnit.HOURS.toMillis(n);
+                    break;
+                case "d":
+                    result = TimeUnit.DAYS.toMillis(n);
+                    break;
+                default:
+                    result = TimeUnit.DAYS.toMillis(7 * n);
+                    break;
+            }
+        } else {
+            try {
+                result = Double.parseDouble(str);
+            } catch (final NumberFormatException e) {
+                throw new ParseException("Interval '" + str + "' not recognized.");
+            }
+        }
+        if (!(result > 0)) {
+            throw new ParseException("Interval '" + str + "' must be positive.");
+        }
+        return result;
+    }
+
+    /**
+     * The quotient rounded towards negative infinity, as Math.floorDiv does
+     * on Java 8.
+     */
+    static long floorDiv(final long x, final long y) {
+        long result = x / y;
+        if (x % y != 0 && (x ^ y) < 0) {
+            result--;
+        }
+        return result;
+    }
+
+    private static Object toNumber(final double value) {
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+            return (long) value;
+        }
+        return value;
+    }
+
+}
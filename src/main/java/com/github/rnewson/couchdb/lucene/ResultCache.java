@@ -0,0 +1,254 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The hits, facet counts and ranges of recent searches of one index, so a
+ * repeated search only loads its rows. Entries are keyed by the query,
+ * sort and the other parameters that decide the hits, and by the version
+ * of the reader that was searched, so they are never served from another
+ * snapshot of the index. The cache is emptied when the index is refreshed
+ * and the least recently used entries are evicted to stay within a byte
+ * budget.
+ *
+ * @author rnewson
+ */
+public final class ResultCache {
+
+    // Rough cost of the map entry, key and bookkeeping of each result.
+    private static final int ENTRY_OVERHEAD = 256;
+
+    // Rough cost of a ScoreDoc and its slot in the array.
+    private static final int SCORE_DOC_SIZE = 32;
+
+    public static final class Key {
+
+        private final Query query;
+        private final Sort sort;
+        private final String params;
+        private final long version;
+
+        /**
+         * @param params the other parameters that decide the hits, in a
+         *               fixed order.
+         */
+        public Key(final Query query, final Sort sort, final String params, final long version) {
+            this.query = query;
+            this.sort = sort;
+            this.params = params;
+            this.version = version;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = query.hashCode();
+            result = 31 * result + (sort == null ? 0 : sort.hashCode());
+            result = 31 * result + params.hashCode();
+            return 31 * result + (int) (version ^ (version >>> 32));
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return version == other.version
+                    && params.equals(other.params)
+                    && (sort == null ? other.sort == null : sort.equals(other.sort))
+                    && query.equals(other.query);
+        }
+
+        private long size() {
+            return 2L * (query.toString().length() + params.length());
+        }
+    }
+
+    public static final class Result {
+
+        private final TopDocs topDocs;
+        private final JSONObject counts;
+        private final JSONObject ranges;
+        private long size;
+
+        /**
+         * @param counts the facet counts, or null.
+         * @param ranges the ranges, or null.
+         */
+        public Result(final TopDocs topDocs, final JSONObject counts, final JSONObject ranges) {
+            this.topDocs = topDocs;
+            this.counts = counts;
+            this.ranges = ranges;
+        }
+
+        public TopDocs getTopDocs() {
+            return topDocs;
+        }
+
+        public JSONObject getCounts() {
+            return counts;
+        }
+
+        public JSONObject getRanges() {
+            return ranges;
+        }
+
+        private long size() {
+            long result = 0;
+            for (final ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                result += SCORE_DOC_SIZE;
+                if (scoreDoc instanceof FieldDoc) {
+                    for (final Object field : ((FieldDoc) scoreDoc).fields) {
+                        result += 8 + (field instanceof BytesRef ? 32 + ((BytesRef) field).length : 16);
+                    }
+                }
+            }
+            if (counts != null) {
+                result += 2L * counts.toString().length();
+            }
+            if (ranges != null) {
+                result += 2L * ranges.toString().length();
+            }
+            return result;
+        }
+    }
+
+    private final long capacity;
+
+    private final LinkedHashMap<Key, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    // The newest reader version seen; results of older readers are not kept.
+    private long version;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong clears = new AtomicLong();
+
+    /**
+     * @param capacity the byte budget, or zero to cache nothing.
+     */
+    public ResultCache(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return the cached result, or null.
+     */
+    public Result get(final Key key) {
+        final Result result;
+        synchronized (this) {
+            result = entries.get(key);
+        }
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(final Key key, final Result result) {
+        if (!isEnabled()) {
+            return;
+        }
+        result.size = ENTRY_OVERHEAD + key.size() + result.size();
+        if (result.size > capacity / 8) {
+            return;
+        }
+        synchronized (this) {
+            if (key.version < version) {
+                // Searched a reader that has since been refreshed.
+                return;
+            }
+            if (key.version > version) {
+                version = key.version;
+                clear();
+            }
+            final Result old = entries.put(key, result);
+            if (old != null) {
+                size -= old.size;
+            }
+            size += result.size;
+            evict();
+        }
+    }
+
+    /**
+     * Drops every result, as none can be served by a refreshed reader.
+     */
+    public synchronized void clear() {
+        if (!entries.isEmpty()) {
+            entries.clear();
+            size = 0;
+            clears.incrementAndGet();
+        }
+    }
+
+    public JSONObject getStats() throws JSONException {
+        final JSONObject result = new JSONObject();
+        synchronized (this) {
+            result.put("entries", entries.size());
+            result.put("bytes", size);
+        }
+        final long hits = this.hits.get();
+        final long lookups = hits + misses.get();
+        result.put("capacity", capacity);
+        result.put("hits", hits);
+        result.put("misses", lookups - hits);
+        result.put("hit_rate", lookups == 0 ? 0.0 : (double) hits / lookups);
+        result.put("evictions", evictions.get());
+        result.put("clears", clears.get());
+        return result;
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<Key, Result>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue().size;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The threads that search index segments concurrently, shared by every
+ * database. A bounded number of searches are admitted at once and the rest
+ * wait their turn, so a burst of expensive queries cannot take every
+ * processor away from indexing. When all the threads are busy and the queue
+ * is full, a search runs its remaining segments on its own thread.
+ *
+ * @author rnewson
+ */
+public final class SearchPool {
+
+    private final ThreadPoolExecutor executor;
+
+    private final Semaphore admissions;
+
+    private final int maxConcurrentSearches;
+
+    private final long admissionTimeout;
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    private final SearcherFactory searcherFactory = new SearcherFactory() {
+
+        @Override
+        public IndexSearcher newSearcher(final IndexReader reader) throws IOException {
+            return new IndexSearcher(reader, executor);
+        }
+    };
+
+    public SearchPool(final HierarchicalINIConfiguration ini) {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        this.maxConcurrentSearches = max(1, ini.getInt("lucene.maxConcurrentSearches", processors * 2));
+        this.admissionTimeout = max(0L, ini.getLong("lucene.timeout", 5000));
+        this.admissions = new Semaphore(maxConcurrentSearches, true);
+
+        final int threads = max(1, ini.getInt("lucene.searchThreads", processors));
+        final int queueSize = max(1, ini.getInt("lucene.searchQueueSize", 100));
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Thread result = new Thread(r, "searcher-" + count.getAndIncrement());
+                result.setDaemon(true);
+                return result;
+            }
+        }, new RejectedExecutionHandler() {
+
+            public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("search pool is shut down");
+                }
+                callerRuns.incrementAndGet();
+                r.run();
+            }
+        });
+    }
+
+    /**
+     * Waits up to lucene.timeout milliseconds for a search to be admitted.
+     * Every successful call must be followed by a call to leave().
+     */
+    public boolean admit() {
+        return admit(1);
+    }
+
+    /**
+     * Waits up to lucene.timeout milliseconds for several searches, such as
+     * the queries of a batch, to be admitted together. More searches than
+     * may run at once are admitted as that many, once nothing else runs.
+     * Every successful call must be followed by a call to leave(searches).
+     */
+    public boolean admit(final int searches) {
+        final int permits = permits(searches);
+        try {
+            if (admissions.tryAcquire(permits, admissionTimeout, MILLISECONDS)) {
+                admitted.addAndGet(permits);
+                return true;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.addAndGet(permits);
+        return false;
+    }
+
+    public void leave() {
+        leave(1);
+    }
+
+    public void leave(final int searches) {
+        admissions.release(permits(searches));
+    }
+
+    /**
+     * Runs a whole search on this pool. It must use a searcher without an
+     * executor, or it could wait for segments queued behind it.
+     */
+    public <T> Future<T> submit(final Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Creates searchers that spread their segments over this pool.
+     */
+    public SearcherFactory getSearcherFactory() {
+        return searcherFactory;
+    }
+
+    /**
+     * A searcher for one search of a reader, spreading its segments over
+     * this pool and giving up when its client goes away or its time runs
+     * out.
+     */
+    public CancellableSearcher newSearcher(final IndexReader reader, final Cancellation cancellation,
+                                           final long timeout) {
+        return new CancellableSearcher(reader, executor, cancellation, timeout);
+    }
+
+    public JSONObject getStats() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("threads", executor.getPoolSize());
+        result.put("active_threads", executor.getActiveCount());
+        result.put("queue_depth", executor.getQueue().size());
+        result.put("caller_runs", callerRuns.get());
+        result.put("searches", maxConcurrentSearches - admissions.availablePermits());
+        result.put("waiting_searches", admissions.getQueueLength());
+        result.put("admitted", admitted.get());
+        result.put("rejected", rejected.get());
+        return result;
+    }
+
+    private int permits(final int searches) {
+        return Math.min(max(1, searches), maxConcurrentSearches);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
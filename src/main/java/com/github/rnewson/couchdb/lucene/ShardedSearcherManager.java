@@ -0,0 +1,142 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Like SearcherManager but over several writers, one per shard of a view.
+ * Each searcher reads a MultiReader of near-real-time readers, one per
+ * shard, and is created by the given factory. Refreshing only reopens the
+ * shards that changed.
+ *
+ * @author rnewson
+ */
+public final class ShardedSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    private final IndexWriter[] writers;
+
+    private final SearcherFactory searcherFactory;
+
+    public ShardedSearcherManager(final IndexWriter[] writers, final SearcherFactory searcherFactory)
+            throws IOException {
+        this.writers = writers;
+        this.searcherFactory = searcherFactory;
+        final DirectoryReader[] readers = new DirectoryReader[writers.length];
+        final boolean[] reused = new boolean[readers.length];
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                readers[i] = DirectoryReader.open(writers[i], true);
+            }
+        } catch (final IOException | RuntimeException e) {
+            release(readers, reused);
+            throw e;
+        }
+        current = newSearcher(readers, reused);
+    }
+
+    /**
+     * The per-shard readers of a searcher from this manager, in shard order.
+     */
+    public static List<DirectoryReader> getShardReaders(final IndexReader reader) {
+        final List<DirectoryReader> result = new ArrayList<>();
+        if (reader instanceof DirectoryReader) {
+            result.add((DirectoryReader) reader);
+        } else {
+            for (final IndexReaderContext child : reader.getContext().children()) {
+                result.add((DirectoryReader) child.reader());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected void decRef(final IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded(final IndexSearcher referenceToRefresh)
+            throws IOException {
+        final List<DirectoryReader> old = getShardReaders(referenceToRefresh.getIndexReader());
+        final DirectoryReader[] readers = new DirectoryReader[old.size()];
+        final boolean[] reused = new boolean[readers.length];
+        boolean changed = false;
+        try {
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = DirectoryReader.openIfChanged(old.get(i), writers[i], true);
+                if (readers[i] == null) {
+                    readers[i] = old.get(i);
+                    reused[i] = true;
+                } else {
+                    changed = true;
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            release(readers, reused);
+            throw e;
+        }
+        if (!changed) {
+            return null;
+        }
+        return newSearcher(readers, reused);
+    }
+
+    @Override
+    protected boolean tryIncRef(final IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount(final IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+
+    /**
+     * The MultiReader takes its own reference to every shard, so the
+     * references from opening new shard readers are dropped once it exists.
+     */
+    private IndexSearcher newSearcher(final DirectoryReader[] readers, final boolean[] reused)
+            throws IOException {
+        try {
+            return searcherFactory.newSearcher(new MultiReader(readers, false));
+        } finally {
+            release(readers, reused);
+        }
+    }
+
+    private static void release(final DirectoryReader[] readers, final boolean[] reused)
+            throws IOException {
+        for (int i = 0; i < readers.length; i++) {
+            if (readers[i] != null && !reused[i]) {
+                readers[i].decRef();
+            }
+        }
+    }
+
+}
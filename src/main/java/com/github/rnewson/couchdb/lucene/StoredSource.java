@@ -0,0 +1,104 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.document.CompressionTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * A compressed copy of a CouchDB document, or of some of its fields,
+ * stored in the index so include_docs can be answered without CouchDB.
+ *
+ * @author rnewson
+ */
+public final class StoredSource {
+
+    public static final String FIELD = "_source";
+
+    /**
+     * Adds the document, or the given paths of it, to every Lucene document
+     * it was converted into.
+     */
+    public static void add(final Collection<Document> docs, final JSONObject doc,
+                           final List<String> paths) throws JSONException {
+        if (docs.isEmpty()) {
+            return;
+        }
+        final JSONObject source = paths.isEmpty() ? doc : project(doc, paths);
+        final StoredField field = new StoredField(FIELD, CompressionTools.compressString(source.toString()));
+        for (final Document result : docs) {
+            result.add(field);
+        }
+    }
+
+    /**
+     * @return the stored document, or null if there is none.
+     */
+    public static JSONObject get(final Document doc) throws JSONException {
+        final BytesRef bytes = doc.getBinaryValue(FIELD);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(CompressionTools.decompressString(bytes));
+        } catch (final DataFormatException e) {
+            throw new JSONException(e);
+        }
+    }
+
+    /**
+     * Copies _id, _rev and every dotted path that exists in the document.
+     */
+    static JSONObject project(final JSONObject doc, final List<String> paths) throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("_id", doc.opt("_id"));
+        result.putOpt("_rev", doc.opt("_rev"));
+        for (final String path : paths) {
+            final String[] parts = path.split("\\.");
+            Object value = doc;
+            for (final String part : parts) {
+                value = value instanceof JSONObject ? ((JSONObject) value).opt(part) : null;
+            }
+            if (value == null) {
+                continue;
+            }
+            JSONObject to = result;
+            for (int i = 0; i < parts.length - 1; i++) {
+                JSONObject next = to.optJSONObject(parts[i]);
+                if (next == null) {
+                    next = new JSONObject();
+                    to.put(parts[i], next);
+                }
+                to = next;
+            }
+            to.put(parts[parts.length - 1], value);
+        }
+        return result;
+    }
+
+    private StoredSource() {
+    }
+
+}
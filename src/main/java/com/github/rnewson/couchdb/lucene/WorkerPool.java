@@ -0,0 +1,131 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mozilla.javascript.ClassShutter;
+import org.mozilla.javascript.Context;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Math.max;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The threads that run index functions and fetch documents for
+ * include_docs, shared by every database so the number of threads does not
+ * grow with the number of databases. Conversion threads have their own
+ * Rhino context and run index functions for any view. Both pools have
+ * bounded queues that block the submitting thread when full, so a busy
+ * database slows the changes reader rather than queueing without limit.
+ *
+ * @author rnewson
+ */
+public final class WorkerPool {
+
+    private static final class RestrictiveClassShutter implements ClassShutter {
+
+        public boolean visibleToScripts(final String fullClassName) {
+            return false;
+        }
+    }
+
+    private final ThreadPoolExecutor converters;
+
+    private final ThreadPoolExecutor fetchers;
+
+    public WorkerPool(final HierarchicalINIConfiguration ini) {
+        final int queueSize = max(1, ini.getInt("lucene.indexQueueSize", 1000));
+        this.converters = newExecutor("converter", max(1, ini.getInt("lucene.converterThreads",
+                Runtime.getRuntime().availableProcessors())), queueSize, true);
+        this.fetchers = newExecutor("fetcher", max(1, ini.getInt("lucene.fetchThreads", 4)), queueSize, false);
+    }
+
+    /**
+     * Runs an index function on a thread that has entered a Rhino context.
+     */
+    public <T> Future<T> convert(final Callable<T> task) {
+        return converters.submit(task);
+    }
+
+    /**
+     * Fetches a batch of documents from CouchDB.
+     */
+    public <T> Future<T> fetch(final Callable<T> task) {
+        return fetchers.submit(task);
+    }
+
+    public JSONObject getStats() throws JSONException {
+        final JSONObject result = new JSONObject();
+        result.put("converter_threads", converters.getPoolSize());
+        result.put("converter_queue_depth", converters.getQueue().size());
+        result.put("fetch_threads", fetchers.getPoolSize());
+        result.put("fetch_queue_depth", fetchers.getQueue().size());
+        return result;
+    }
+
+    public void shutdown() {
+        converters.shutdownNow();
+        fetchers.shutdownNow();
+    }
+
+    private static ThreadPoolExecutor newExecutor(final String name, final int threads,
+                                                  final int queueSize, final boolean rhino) {
+        final ThreadFactory factory = new ThreadFactory() {
+
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Runnable target = !rhino ? r : new Runnable() {
+
+                    public void run() {
+                        final Context context = Context.enter();
+                        try {
+                            context.setClassShutter(new RestrictiveClassShutter());
+                            context.setOptimizationLevel(9);
+                            r.run();
+                        } finally {
+                            Context.exit();
+                        }
+                    }
+                };
+                final Thread result = new Thread(target, name + "-" + count.getAndIncrement());
+                result.setDaemon(true);
+                return result;
+            }
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), factory,
+                new RejectedExecutionHandler() {
+
+                    public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException(name + " pool is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (final InterruptedException e) {
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+}
@@ -25,6 +25,8 @@ public class CouchDocument {
 
     private static final String ID = "_id";
 
+    private static final String REV = "_rev";
+
     private static final String DELETED = "_deleted";
 
     public static CouchDocument deletedDocument(final String id) throws JSONException {
@@ -45,6 +47,13 @@ public class CouchDocument {
         return json.getString(ID);
     }
 
+    /**
+     * @return the revision, or null if the document has none.
+     */
+    public String getRevision() {
+        return json.optString(REV, null);
+    }
+
     public boolean isDeleted() {
         return json.optBoolean(DELETED, false);
     }
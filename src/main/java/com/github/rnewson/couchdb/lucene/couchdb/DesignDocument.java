@@ -28,6 +28,8 @@ public class DesignDocument extends CouchDocument {
 
     private final JSONObject fulltext;
 
+    private final JSONObject analyzers;
+
     public DesignDocument(final JSONObject json) throws JSONException {
         super(json);
         if (!getId().startsWith("_design/")) {
@@ -35,6 +37,7 @@ public class DesignDocument extends CouchDocument {
                     + " is not a design document");
         }
         fulltext = json.optJSONObject("fulltext");
+        analyzers = json.optJSONObject("analyzers");
     }
 
     public DesignDocument(final CouchDocument doc) throws JSONException {
@@ -45,7 +48,7 @@ public class DesignDocument extends CouchDocument {
         if (fulltext == null)
             return null;
         final JSONObject json = fulltext.optJSONObject(name);
-        return json == null ? null : new View(getId() + "/" + name, json);
+        return json == null ? null : new View(getId() + "/" + name, json, analyzers);
     }
 
     public Map<String, View> getAllViews() throws JSONException {
@@ -19,17 +19,30 @@ package com.github.rnewson.couchdb.lucene.couchdb;
 import com.github.rnewson.couchdb.lucene.util.Analyzers;
 import org.apache.commons.lang.StringUtils;
 import org.apache.lucene.analysis.Analyzer;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.ScriptableObject;
 
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * A fulltext index of a design document. Everything derived from its
+ * definition, such as the digest that names its directory, is worked out
+ * once, when first needed, and kept, as a view is looked up for every
+ * change and every search.
+ *
+ * @author rnewson
+ */
 public final class View {
 
     private static final String DEFAULT_ANALYZER = "standard";
@@ -40,43 +53,214 @@ public final class View {
 
     private static final String DEFAULTS = "defaults";
 
+    private static final String SHARDS = "shards";
+
+    private static final String SOURCE = "source";
+
+    private static final String QUERIES = "queries";
+
     private final JSONObject json;
 
     private final String name;
 
+    // The analyzers defined by the design document, or null.
+    private final JSONObject analyzers;
+
+    private final String function;
+
+    private final int shards;
+
+    private final String digest;
+
+    // Built on first use, as they can fail on a bad definition.
+    private volatile String analyzer;
+
+    private volatile ViewSettings defaultSettings;
+
+    private volatile List<String> sourcePaths;
+
+    private volatile boolean sourcePathsSet;
+
+    private volatile Script script;
+
     public View(final String name, final JSONObject json) {
+        this(name, json, null);
+    }
+
+    public View(final String name, final JSONObject json, final JSONObject analyzers) {
         if (!json.has(INDEX)) {
             throw new IllegalArgumentException(json + " is not an index");
         }
         this.name = name;
         this.json = json;
+        this.analyzers = analyzers;
+        this.function = trim(json.optString(INDEX));
+        this.shards = Math.max(1, json.optInt(SHARDS, 1));
+        this.digest = digest();
     }
 
     public Analyzer getAnalyzer() throws JSONException {
-        return Analyzers
-                .getAnalyzer(json.optString(ANALYZER, DEFAULT_ANALYZER));
+        return Analyzers.getAnalyzer(getAnalyzerName());
+    }
+
+    /**
+     * The analyzer of the index, shared with every other open index using
+     * the same one. Each call must be followed by a call to releaseAnalyzer.
+     */
+    public Analyzer acquireAnalyzer() throws JSONException {
+        return Analyzers.acquireAnalyzer(getAnalyzerName());
+    }
+
+    public void releaseAnalyzer() {
+        // Acquiring it resolved the name, so there is nothing to release if unresolved.
+        final String name = analyzer;
+        if (name != null) {
+            Analyzers.releaseAnalyzer(name);
+        }
+    }
+
+    /**
+     * @param analyzer the name of an analyzer given by a search, which may
+     *                 be one defined by the design document.
+     * @throws IllegalArgumentException if it is a custom analyzer that is
+     *                                  neither the index's own nor one of
+     *                                  the design document.
+     */
+    public Analyzer getAnalyzer(final String analyzer) throws JSONException {
+        if (analyzers != null && analyzers.has(analyzer) || analyzer.equals(json.optString(ANALYZER))) {
+            return Analyzers.getAnalyzer(resolveAnalyzer(analyzer));
+        }
+        return Analyzers.getRequestAnalyzer(analyzer);
+    }
+
+    private String getAnalyzerName() throws JSONException {
+        String result = analyzer;
+        if (result == null) {
+            result = resolveAnalyzer(json.optString(ANALYZER, DEFAULT_ANALYZER));
+            analyzer = result;
+        }
+        return result;
+    }
+
+    /**
+     * Analyzers of the design document are chains of analysis components,
+     * as for custom analyzers.
+     */
+    private String resolveAnalyzer(final String analyzer) throws JSONException {
+        if (analyzers != null && analyzers.has(analyzer)) {
+            return "custom:" + analyzers.getJSONObject(analyzer);
+        }
+        return analyzer;
     }
 
     public ViewSettings getDefaultSettings() throws JSONException {
-        return json.has(DEFAULTS) ? new ViewSettings(json
-                .getJSONObject(DEFAULTS)) : ViewSettings.getDefaultSettings();
+        ViewSettings result = defaultSettings;
+        if (result == null) {
+            result = json.has(DEFAULTS) ? new ViewSettings(json
+                    .getJSONObject(DEFAULTS)) : ViewSettings.getDefaultSettings();
+            defaultSettings = result;
+        }
+        return result;
+    }
+
+    /**
+     * The number of sub-indexes the view is split into by a hash of the
+     * document id.
+     */
+    public int getShards() {
+        return shards;
     }
 
-    public String getFunction() throws JSONException {
-        return trim(json.getString(INDEX));
+    /**
+     * The parts of each document the view stores for include_docs. Null
+     * unless the view stores documents, empty for whole documents, or else
+     * the dotted paths of the fields to keep.
+     */
+    public List<String> getSourcePaths() throws JSONException {
+        if (sourcePathsSet) {
+            return sourcePaths;
+        }
+        final Object source = json.opt(SOURCE);
+        List<String> result = null;
+        if (source instanceof JSONArray) {
+            final JSONArray array = (JSONArray) source;
+            result = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                result.add(array.getString(i));
+            }
+            result = Collections.unmodifiableList(result);
+        } else if (storesSource()) {
+            result = Collections.emptyList();
+        }
+        sourcePaths = result;
+        sourcePathsSet = true;
+        return result;
+    }
+
+    /**
+     * Whether source is true or a list of paths; anything else, including
+     * false, stores nothing.
+     */
+    private boolean storesSource() {
+        return json.opt(SOURCE) instanceof JSONArray || json.optBoolean(SOURCE, false);
+    }
+
+    /**
+     * The named query templates of the view. They do not affect the index,
+     * so they are not part of the digest.
+     *
+     * @return the template called name, or null.
+     */
+    public String getQuery(final String name) {
+        final JSONObject queries = json.optJSONObject(QUERIES);
+        return queries == null ? null : queries.optString(name, null);
+    }
+
+    public String getFunction() {
+        return function;
     }
 
     public Function compileFunction(final Context context,
-                                    ScriptableObject scope) throws JSONException {
+                                    ScriptableObject scope) {
         return context.compileFunction(scope, getFunction(), null, 0, null);
     }
 
+    /**
+     * Compiles the index function as a script evaluating to the function
+     * itself, the first time it is called. The result can be executed in
+     * any number of scopes and threads.
+     */
+    public Script compileScript(final Context context) {
+        Script result = script;
+        if (result == null) {
+            result = context.compileString("(" + getFunction() + "\n)", name, 1, null);
+            script = result;
+        }
+        return result;
+    }
+
     public String getDigest() {
+        return digest;
+    }
+
+    private String digest() {
         try {
             final MessageDigest md = MessageDigest.getInstance("MD5");
             md.update(toBytes(json.optString("analyzer")));
+            // Only views using an analyzer of the design document include it.
+            if (analyzers != null && analyzers.has(json.optString(ANALYZER))) {
+                md.update(toBytes(ANALYZER + analyzers.optString(json.optString(ANALYZER))));
+            }
             md.update(toBytes(json.optString("defaults")));
             md.update(toBytes(json.optString("index")));
+            // Only sharded views include it, so existing indexes keep their digest.
+            if (getShards() > 1) {
+                md.update(toBytes(SHARDS + getShards()));
+            }
+            // Only views that store documents include it, so "source": false changes nothing.
+            if (storesSource()) {
+                md.update(toBytes(SOURCE + json.optString(SOURCE)));
+            }
             return new BigInteger(1, md.digest()).toString(Character.MAX_RADIX);
         } catch (final NoSuchAlgorithmException e) {
             throw new Error("MD5 support missing.");
@@ -104,7 +288,7 @@ public final class View {
 
     @Override
     public int hashCode() {
-        return getDigest().hashCode();
+        return digest.hashCode();
     }
 
     @Override
@@ -119,7 +303,7 @@ public final class View {
             return false;
         }
         View other = (View) obj;
-        return getDigest().equals(other.getDigest());
+        return digest.equals(other.digest);
     }
 
     @Override
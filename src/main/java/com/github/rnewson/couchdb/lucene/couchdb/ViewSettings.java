@@ -26,7 +26,7 @@ import org.mozilla.javascript.NativeObject;
 public final class ViewSettings {
 
     public static ViewSettings getDefaultSettings() {
-        return new ViewSettings(Constants.DEFAULT_FIELD, "analyzed", "no", "string", "1.0", "no", null);
+        return new ViewSettings(Constants.DEFAULT_FIELD, "analyzed", "no", "string", "1.0", "no", "no", null);
     }
 
     private final Index index;
@@ -35,13 +35,14 @@ public final class ViewSettings {
     private final FieldType type;
     private final float boost;
     private final TermVector termvector;
+    private final boolean facet;
 
     public ViewSettings(final JSONObject json) {
         this(json, getDefaultSettings());
     }
 
     public ViewSettings(final JSONObject json, final ViewSettings defaults) {
-        this(json.optString("field", null), json.optString("index", null), json.optString("store", null), json.optString("type", null), json.optString("boost", null), json.optString("termvector", null), defaults);
+        this(json.optString("field", null), json.optString("index", null), json.optString("store", null), json.optString("type", null), json.optString("boost", null), json.optString("termvector", null), json.optString("facet", null), defaults);
     }
 
     public ViewSettings(final NativeObject obj) {
@@ -49,16 +50,17 @@ public final class ViewSettings {
     }
 
     public ViewSettings(final NativeObject obj, final ViewSettings defaults) {
-        this(get(obj, "field"), get(obj, "index"), get(obj, "store"), get(obj, "type"), get(obj, "boost"), get(obj, "termvector"), defaults);
+        this(get(obj, "field"), get(obj, "index"), get(obj, "store"), get(obj, "type"), get(obj, "boost"), get(obj, "termvector"), get(obj, "facet"), defaults);
     }
 
-    private ViewSettings(final String field, final String index, final String store, final String type, final String boost, final String termvector, final ViewSettings defaults) {
+    private ViewSettings(final String field, final String index, final String store, final String type, final String boost, final String termvector, final String facet, final ViewSettings defaults) {
         this.field = field != null ? field : defaults.getField();
         this.index = index != null ? Index.valueOf(index.toUpperCase()) : defaults.getIndex();
         this.store = store != null ? Store.valueOf(store.toUpperCase()) : defaults.getStore();
         this.type = type != null ? FieldType.valueOf(type.toUpperCase()) : defaults.getFieldType();
         this.boost = boost != null ? Float.valueOf(boost) : defaults.getBoost();
         this.termvector = termvector != null ? TermVector.valueOf(termvector.toUpperCase()) : defaults.getTermVector();
+        this.facet = facet != null ? "yes".equalsIgnoreCase(facet) || "true".equalsIgnoreCase(facet) : defaults.isFacet();
     }
 
     public float getBoost() {
@@ -85,6 +87,14 @@ public final class ViewSettings {
         return termvector;
     }
 
+    /**
+     * Whether string values are also written as doc values, so searches
+     * can count hits per value with the counts parameter.
+     */
+    public boolean isFacet() {
+        return facet;
+    }
+
     private static String get(final NativeObject obj, final String key) {
         return obj == null ? null : obj.has(key, null) ? obj.get(key, null).toString() : null;
     }
@@ -0,0 +1,130 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.rhino;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.NativeObject;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A javascript object backed by a parsed JSON object. Properties are only
+ * converted into Rhino values when the index function first reads them, so
+ * an index function that looks at a few fields of a large document does not
+ * pay for copying the rest.
+ *
+ * @author rnewson
+ */
+public final class LazyJSONObject extends NativeObject {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JSONObject json;
+
+    // Keys of json that have not been copied into this object yet.
+    private final Set<String> pending = new HashSet<>();
+
+    public LazyJSONObject(final JSONObject json, final Scriptable scope) {
+        this.json = json;
+        final Iterator<?> it = json.keys();
+        while (it.hasNext()) {
+            pending.add((String) it.next());
+        }
+        setParentScope(scope);
+        setPrototype(ScriptableObject.getObjectPrototype(scope));
+    }
+
+    @Override
+    public Object get(final String name, final Scriptable start) {
+        materialize(name);
+        return super.get(name, start);
+    }
+
+    @Override
+    public boolean has(final String name, final Scriptable start) {
+        return pending.contains(name) || super.has(name, start);
+    }
+
+    @Override
+    public void put(final String name, final Scriptable start, final Object value) {
+        pending.remove(name);
+        super.put(name, start, value);
+    }
+
+    @Override
+    public void delete(final String name) {
+        pending.remove(name);
+        super.delete(name);
+    }
+
+    /**
+     * Enumerate in the order of the underlying JSON object, followed by any
+     * properties the index function added itself.
+     */
+    @Override
+    public Object[] getIds() {
+        final List<Object> result = new ArrayList<>();
+        final Iterator<?> it = json.keys();
+        while (it.hasNext()) {
+            final String key = (String) it.next();
+            if (pending.contains(key) || super.has(key, this)) {
+                result.add(key);
+            }
+        }
+        for (final Object id : super.getIds()) {
+            if (!(id instanceof String && json.has((String) id))) {
+                result.add(id);
+            }
+        }
+        return result.toArray();
+    }
+
+    private void materialize(final String name) {
+        if (pending.remove(name)) {
+            super.put(name, this, convert(json.opt(name), getParentScope()));
+        }
+    }
+
+    private static Object convert(final Object obj, final Scriptable scope) {
+        if (obj instanceof JSONArray) {
+            final JSONArray array = (JSONArray) obj;
+            final Object[] elements = new Object[array.length()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = convert(array.opt(i), scope);
+            }
+            final NativeArray result = new NativeArray(elements);
+            result.setParentScope(scope);
+            result.setPrototype(ScriptableObject.getClassPrototype(scope, "Array"));
+            return result;
+        } else if (obj == JSONObject.NULL) {
+            return null;
+        } else if (obj instanceof JSONObject) {
+            return new LazyJSONObject((JSONObject) obj, scope);
+        } else {
+            return obj;
+        }
+    }
+
+}
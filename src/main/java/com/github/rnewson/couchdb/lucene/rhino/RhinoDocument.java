@@ -26,7 +26,10 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.util.BytesRef;
 import org.mozilla.javascript.*;
 
 import java.io.IOException;
@@ -85,7 +88,7 @@ public final class RhinoDocument extends ScriptableObject {
         }
 
         if (!className.startsWith("java.lang.") &&
-                !className.equals("org.mozilla.javascript.NativeObject") &&
+                !(args[0] instanceof NativeObject) &&
                 !className.equals("org.mozilla.javascript.NativeDate")) {
             throw Context.reportRuntimeError(className + " is not supported.");
         }
@@ -177,6 +180,13 @@ public final class RhinoDocument extends ScriptableObject {
         final ViewSettings settings = new ViewSettings(field.settings, defaults);
         final FieldType type = settings.getFieldType();
         out.add(type.toField(settings.getField(), field.value, settings));
+        if (settings.isFacet() && type == FieldType.STRING) {
+            final BytesRef value = new BytesRef(field.value.toString());
+            // Doc values reject values that would not fit in a term.
+            if (value.length <= IndexWriter.MAX_TERM_LENGTH) {
+                out.add(new SortedSetDocValuesField(settings.getField(), value));
+            }
+        }
     }
 
 }
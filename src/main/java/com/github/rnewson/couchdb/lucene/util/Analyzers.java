@@ -38,12 +38,22 @@ import org.apache.lucene.analysis.standard.ClassicAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.th.ThaiAnalyzer;
 import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.AbstractAnalysisFactory;
+import org.apache.lucene.analysis.util.CharFilterFactory;
+import org.apache.lucene.analysis.util.ClasspathResourceLoader;
+import org.apache.lucene.analysis.util.ResourceLoaderAware;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.analysis.util.TokenizerFactory;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public enum Analyzers {
@@ -173,8 +183,54 @@ public enum Analyzers {
             int max = json.optInt("max", NGramTokenFilter.DEFAULT_MAX_NGRAM_SIZE);
             return new NGramAnalyzer(analyzer, min, max);
         }
+    },
+    CUSTOM {
+        public Analyzer newAnalyzer(final String args) throws JSONException {
+            final JSONObject json = new JSONObject(args == null ? "{}" : args);
+            final JSONArray charFilters = json.optJSONArray("char_filters");
+            final CharFilterFactory[] charFilterFactories = new CharFilterFactory[charFilters == null ? 0 : charFilters.length()];
+            for (int i = 0; i < charFilterFactories.length; i++) {
+                final Map<String, String> factoryArgs = toArgs(charFilters.get(i));
+                charFilterFactories[i] = inform(CharFilterFactory.forName(factoryArgs.remove("type"), factoryArgs));
+            }
+            final Map<String, String> tokenizerArgs = toArgs(json.opt("tokenizer") == null ? "standard" : json.get("tokenizer"));
+            final TokenizerFactory tokenizerFactory = inform(TokenizerFactory.forName(tokenizerArgs.remove("type"), tokenizerArgs));
+            final JSONArray filters = json.optJSONArray("filters");
+            final TokenFilterFactory[] filterFactories = new TokenFilterFactory[filters == null ? 0 : filters.length()];
+            for (int i = 0; i < filterFactories.length; i++) {
+                final Map<String, String> factoryArgs = toArgs(filters.get(i));
+                filterFactories[i] = inform(TokenFilterFactory.forName(factoryArgs.remove("type"), factoryArgs));
+            }
+            return new ChainAnalyzer(charFilterFactories, tokenizerFactory, filterFactories);
+        }
     };
 
+    // Analyzers are shared by every thread, each reusing its own token streams.
+    // Those of open indexes are kept until the last index using each closes.
+    private static final Map<String, Held> ANALYZERS = new HashMap<>();
+
+    // Any analyzer can be named by a search, so only this many of those are kept.
+    private static final int MAX_REQUEST_ANALYZERS = 256;
+
+    private static final Map<String, Analyzer> REQUEST_ANALYZERS = new LinkedHashMap<String, Analyzer>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Analyzer> eldest) {
+            return size() > MAX_REQUEST_ANALYZERS;
+        }
+    };
+
+    private static final class Held {
+        private final Analyzer analyzer;
+        private int refs;
+
+        private Held(final Analyzer analyzer) {
+            this.analyzer = analyzer;
+        }
+    }
+
     private static final class PorterStemAnalyzer extends Analyzer {
         @Override
         protected TokenStreamComponents createComponents(String fieldName, Reader reader) {
@@ -207,13 +263,176 @@ public enum Analyzers {
         }
     }
 
+    /**
+     * A tokenizer and filters from the analysis factories of Lucene, e.g.
+     * custom:{"tokenizer": "whitespace", "filters": ["lowercase",
+     * {"type": "edgengram", "maxGramSize": 5}]}. Each is named by its SPI
+     * name or an object with a type and the arguments of its factory.
+     */
+    private static final class ChainAnalyzer extends Analyzer {
+        private final CharFilterFactory[] charFilters;
+        private final TokenizerFactory tokenizer;
+        private final TokenFilterFactory[] filters;
+
+        public ChainAnalyzer(final CharFilterFactory[] charFilters, final TokenizerFactory tokenizer,
+                             final TokenFilterFactory[] filters) {
+            this.charFilters = charFilters;
+            this.tokenizer = tokenizer;
+            this.filters = filters;
+        }
+
+        @Override
+        protected Reader initReader(final String fieldName, final Reader reader) {
+            Reader result = reader;
+            for (final CharFilterFactory charFilter : charFilters) {
+                result = charFilter.create(result);
+            }
+            return result;
+        }
+
+        @Override
+        protected TokenStreamComponents createComponents(final String fieldName, final Reader reader) {
+            final Tokenizer source = tokenizer.create(reader);
+            TokenStream result = source;
+            for (final TokenFilterFactory filter : filters) {
+                result = filter.create(result);
+            }
+            return new TokenStreamComponents(source, result);
+        }
+    }
+
+    /**
+     * @return the analyzer for a name, with its arguments after a colon if
+     * it has any, for an index. It is shared by every index naming it and
+     * kept until each of them has called releaseAnalyzer, so it must not be
+     * closed.
+     */
+    public static Analyzer acquireAnalyzer(final String str) throws JSONException {
+        synchronized (ANALYZERS) {
+            Held held = ANALYZERS.get(str);
+            if (held == null) {
+                held = new Held(build(str));
+                ANALYZERS.put(str, held);
+            }
+            held.refs++;
+            return held.analyzer;
+        }
+    }
+
+    /**
+     * Forgets the analyzer of an index that has closed, once no other index
+     * uses it.
+     */
+    public static void releaseAnalyzer(final String str) {
+        synchronized (ANALYZERS) {
+            final Held held = ANALYZERS.get(str);
+            if (held != null && --held.refs == 0) {
+                ANALYZERS.remove(str);
+            }
+        }
+    }
+
+    /**
+     * @return the analyzer for a name, such as one given by a search. It is
+     * the one an open index uses, if any index names it, or else is only
+     * kept while it is among the most recently used.
+     */
     public static Analyzer getAnalyzer(final String str) throws JSONException {
+        Analyzer result;
+        synchronized (ANALYZERS) {
+            final Held held = ANALYZERS.get(str);
+            if (held != null) {
+                return held.analyzer;
+            }
+        }
+        synchronized (REQUEST_ANALYZERS) {
+            result = REQUEST_ANALYZERS.get(str);
+        }
+        if (result == null) {
+            result = build(str);
+            synchronized (REQUEST_ANALYZERS) {
+                final Analyzer existing = REQUEST_ANALYZERS.get(str);
+                if (existing == null) {
+                    REQUEST_ANALYZERS.put(str, result);
+                } else {
+                    result = existing;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the analyzer for a name given by a search, as getAnalyzer.
+     * @throws IllegalArgumentException if it is, or wraps, a custom
+     *                                  analyzer. Those can name any
+     *                                  analysis factory on the classpath, so
+     *                                  only design documents may define them.
+     */
+    public static Analyzer getRequestAnalyzer(final String str) throws JSONException {
+        checkNotCustom(str);
+        return getAnalyzer(str);
+    }
+
+    private static void checkNotCustom(final String str) throws JSONException {
+        final String[] parts = str.split(":", 2);
+        final JSONObject args = new JSONObject(parts.length == 2 ? parts[1] : "{}");
+        switch (Analyzers.valueOf(parts[0].toUpperCase())) {
+            case CUSTOM:
+                throw new IllegalArgumentException("custom analyzers can only be defined by design documents");
+            case PERFIELD:
+                final Iterator<?> it = args.keys();
+                while (it.hasNext()) {
+                    checkNotCustom(args.getString(it.next().toString()));
+                }
+                break;
+            case NGRAM:
+                checkNotCustom(args.optString("analyzer", "standard"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static Analyzer build(final String str) throws JSONException {
         final String[] parts = str.split(":", 2);
         final String name = parts[0].toUpperCase();
         final String args = parts.length == 2 ? parts[1] : null;
         return Analyzers.valueOf(name).newAnalyzer(args);
     }
 
+    private static Map<String, String> toArgs(final Object spec) throws JSONException {
+        final Map<String, String> result = new HashMap<>();
+        if (spec instanceof JSONObject) {
+            final JSONObject json = (JSONObject) spec;
+            final Iterator<?> it = json.keys();
+            while (it.hasNext()) {
+                final String key = it.next().toString();
+                result.put(key, json.getString(key));
+            }
+        } else {
+            result.put("type", spec.toString());
+        }
+        if (!result.containsKey("type")) {
+            throw new JSONException("Analysis component " + spec + " has no type.");
+        }
+        if (!result.containsKey(AbstractAnalysisFactory.LUCENE_MATCH_VERSION_PARAM)) {
+            result.put(AbstractAnalysisFactory.LUCENE_MATCH_VERSION_PARAM, Constants.VERSION.toString());
+        }
+        return result;
+    }
+
+    private static <T> T inform(final T factory) {
+        if (factory instanceof ResourceLoaderAware) {
+            try {
+                ((ResourceLoaderAware) factory).inform(new ClasspathResourceLoader(Analyzers.class));
+            } catch (final IOException e) {
+                throw new IllegalArgumentException(factory + " could not load its resources.", e);
+            }
+        }
+        return factory;
+    }
+
     public abstract Analyzer newAnalyzer(final String args) throws JSONException;
 
 }
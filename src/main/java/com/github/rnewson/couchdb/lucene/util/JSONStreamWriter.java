@@ -0,0 +1,171 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.util;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes JSON to a stream as it is produced, optionally pretty-printed.
+ * Values are serialized exactly as org.json would serialize them inside a
+ * JSONObject, so large responses can be written piece by piece instead of
+ * being built up as one object graph and one string.
+ *
+ * @author rnewson
+ */
+public final class JSONStreamWriter {
+
+    private final Writer out;
+
+    private final int indentFactor;
+
+    // One entry per open object or array, true until it has a member.
+    private final Deque<Boolean> empty = new ArrayDeque<>();
+
+    // One entry per open object or array, true for objects.
+    private final Deque<Boolean> objects = new ArrayDeque<>();
+
+    private boolean afterKey;
+
+    public JSONStreamWriter(final Writer out, final int indentFactor) {
+        this.out = out;
+        this.indentFactor = indentFactor;
+    }
+
+    public JSONStreamWriter object() throws IOException {
+        beforeValue();
+        out.write('{');
+        empty.push(true);
+        objects.push(true);
+        return this;
+    }
+
+    public JSONStreamWriter endObject() throws IOException {
+        return end(true, '}');
+    }
+
+    public JSONStreamWriter array() throws IOException {
+        beforeValue();
+        out.write('[');
+        empty.push(true);
+        objects.push(false);
+        return this;
+    }
+
+    public JSONStreamWriter endArray() throws IOException {
+        return end(false, ']');
+    }
+
+    public JSONStreamWriter key(final String key) throws IOException {
+        if (!inObject() || afterKey) {
+            throw new IllegalStateException("Misplaced key " + key);
+        }
+        separate();
+        out.write(JSONObject.quote(key));
+        out.write(indentFactor > 0 ? ": " : ":");
+        afterKey = true;
+        return this;
+    }
+
+    public JSONStreamWriter value(final Object value) throws IOException, JSONException {
+        beforeValue();
+        // Let org.json serialize it as an array member, then drop the brackets.
+        final JSONArray wrapper = new JSONArray().put(value);
+        final String str = indentFactor > 0 ? wrapper.toString(indentFactor) : wrapper.toString();
+        out.write(str.substring(1, str.length() - 1).replace("\n", "\n" + indentation(empty.size())));
+        return this;
+    }
+
+    /**
+     * Ends every object and array opened after the first depth of them, so
+     * output that stops part way through is still well formed. A pending
+     * key is given a null value.
+     */
+    public JSONStreamWriter endTo(final int depth) throws IOException {
+        if (afterKey) {
+            afterKey = false;
+            out.write("null");
+        }
+        while (objects.size() > depth) {
+            end(objects.peek(), objects.peek() ? '}' : ']');
+        }
+        return this;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private JSONStreamWriter end(final boolean object, final char c) throws IOException {
+        if (objects.isEmpty() || objects.peek() != object || afterKey) {
+            throw new IllegalStateException("Nothing to end with " + c);
+        }
+        objects.pop();
+        if (!empty.pop()) {
+            newline();
+        }
+        out.write(c);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else if (inObject()) {
+            throw new IllegalStateException("Value without a key");
+        } else {
+            separate();
+        }
+    }
+
+    private boolean inObject() {
+        return !objects.isEmpty() && objects.peek();
+    }
+
+    private void separate() throws IOException {
+        if (empty.isEmpty()) {
+            return;
+        }
+        if (!empty.pop()) {
+            out.write(',');
+        }
+        empty.push(false);
+        newline();
+    }
+
+    private void newline() throws IOException {
+        if (indentFactor > 0) {
+            out.write('\n');
+            out.write(indentation(empty.size()));
+        }
+    }
+
+    private String indentation(final int depth) {
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < depth * indentFactor; i++) {
+            result.append(' ');
+        }
+        return result.toString();
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BookmarkTest {
+
+    private static final Sort SORT = new Sort(
+            new SortField("n", SortField.Type.INT, true),
+            new SortField("name", SortField.Type.STRING),
+            new SortField("size", SortField.Type.LONG),
+            SortField.FIELD_SCORE);
+
+    @Test
+    public void scoreRoundTrip() {
+        final Bookmark bookmark = Bookmark.decode(Bookmark.encode(new ScoreDoc(42, 1.25f), 7), null);
+        assertThat(bookmark.getVersion(), is(7L));
+        assertThat(bookmark.getAfter().doc, is(42));
+        assertThat(bookmark.getAfter().score, is(1.25f));
+    }
+
+    @Test
+    public void sortedRoundTrip() {
+        final FieldDoc last = new FieldDoc(3, Float.NaN,
+                new Object[]{12, new BytesRef("café"), null, 0.1f});
+        final ScoreDoc after = Bookmark.decode(Bookmark.encode(last, 1), SORT).getAfter();
+        assertThat(after, instanceOf(FieldDoc.class));
+        assertThat(after.doc, is(3));
+        assertThat(Float.isNaN(after.score), is(true));
+        final Object[] fields = ((FieldDoc) after).fields;
+        assertThat((Integer) fields[0], is(12));
+        assertThat((BytesRef) fields[1], is(new BytesRef("café")));
+        assertThat(fields[2], nullValue());
+        assertThat((Float) fields[3], is(0.1f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sortMismatch() {
+        Bookmark.decode(Bookmark.encode(new ScoreDoc(1, 1f), 1), SORT);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsortedMismatch() {
+        Bookmark.decode(Bookmark.encode(new FieldDoc(1, 1f, new Object[]{1}), 1), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformed() {
+        Bookmark.decode("not a bookmark", null);
+    }
+
+}
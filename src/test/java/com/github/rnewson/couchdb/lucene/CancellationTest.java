@@ -0,0 +1,136 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class CancellationTest {
+
+    private static class DisconnectedWriter extends Writer {
+
+        @Override
+        public void write(final char[] buf, final int off, final int len) throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            throw new IOException("Broken pipe");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void connectedClient() throws Exception {
+        final StringWriter out = new StringWriter();
+        final Cancellation cancellation = new Cancellation(new PrintWriter(out), 0);
+        cancellation.check();
+        cancellation.check();
+        assertThat(cancellation.isCancelled(), is(false));
+    }
+
+    @Test
+    public void disconnectedClient() throws Exception {
+        final Cancellation cancellation = new Cancellation(new PrintWriter(new DisconnectedWriter()), 0);
+        try {
+            cancellation.check();
+            fail("should have been cancelled");
+        } catch (final Cancellation.CancelledException e) {
+            assertThat(cancellation.isCancelled(), is(true));
+        }
+    }
+
+    @Test
+    public void onlyOwnerProbes() throws Exception {
+        final Cancellation cancellation = new Cancellation(new DisconnectedWriter(), 0);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(new Callable<Void>() {
+                public Void call() {
+                    cancellation.check();
+                    return null;
+                }
+            }).get();
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(cancellation.isCancelled(), is(false));
+    }
+
+    @Test
+    public void probesAtMostOncePerInterval() throws Exception {
+        final StringWriter out = new StringWriter();
+        final Cancellation cancellation = new Cancellation(out, 60000);
+        for (int i = 0; i < 10; i++) {
+            cancellation.check();
+        }
+        assertThat(out.toString(), is(""));
+    }
+
+    @Test
+    public void stopsCollecting() throws Exception {
+        final RAMDirectory dir = new RAMDirectory();
+        final IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Constants.VERSION, Constants.ANALYZER));
+        for (int i = 0; i < 5000; i++) {
+            final Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(i), Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        final DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            final Cancellation cancellation = new Cancellation(new DisconnectedWriter(), 0);
+            final TotalHitCountCollector hits = new TotalHitCountCollector();
+            try {
+                new IndexSearcher(reader).search(new MatchAllDocsQuery(), cancellation.wrap(hits));
+                fail("should have been cancelled");
+            } catch (final Cancellation.CancelledException e) {
+                assertThat(hits.getTotalHits() < 5000, is(true));
+            }
+        } finally {
+            reader.close();
+            dir.close();
+        }
+    }
+
+}
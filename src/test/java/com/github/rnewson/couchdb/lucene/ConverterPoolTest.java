@@ -0,0 +1,86 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import com.github.rnewson.couchdb.lucene.couchdb.View;
+import com.github.rnewson.couchdb.lucene.couchdb.ViewSettings;
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.lucene.document.Document;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConverterPoolTest {
+
+    @Test
+    public void testConvertOnManyThreads() throws Exception {
+        final ConverterPool pool = new ConverterPool(
+                view("function(doc) {var ret=new Document(); ret.add(doc.key); return ret;}"));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<Collection<Document>>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final int n = i;
+                results.add(executor.submit(new Callable<Collection<Document>>() {
+
+                    public Collection<Document> call() throws Exception {
+                        Context.enter();
+                        try {
+                            return pool.convert(
+                                    new CouchDocument(new JSONObject("{_id:\"doc" + n + "\", key:\"value" + n + "\"}")),
+                                    ViewSettings.getDefaultSettings(),
+                                    null);
+                        } finally {
+                            Context.exit();
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < 100; i++) {
+                final Document doc = results.get(i).get().iterator().next();
+                assertThat(doc.get("_id"), is("doc" + i));
+                assertThat(doc.get(Constants.DEFAULT_FIELD), is("value" + i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(pool.getConversions(), is(100L));
+        assertThat(pool.getStats().getLong("conversion_errors"), is(0L));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRequiresContext() throws Exception {
+        final ConverterPool pool = new ConverterPool(view("function(doc) {return null;}"));
+        pool.convert(new CouchDocument(new JSONObject("{_id:\"hello\"}")), ViewSettings.getDefaultSettings(), null);
+    }
+
+    private View view(final String fun) throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", fun);
+        return new View(null, json);
+    }
+
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.DocumentGenerator;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch.StubDatabase;
+import com.github.rnewson.couchdb.lucene.util.Utils;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DatabaseIndexerTest {
+
+    private static final DocumentGenerator GENERATOR = new DocumentGenerator() {
+
+        public JSONObject generate(final int n) throws JSONException {
+            final JSONObject result = new JSONObject();
+            result.put("_id", String.format("doc%03d", n));
+            result.put("body", n % 2 == 0 ? "even" : "odd");
+            result.put("n", n);
+            return result;
+        }
+    };
+
+    private StubCouch couch;
+
+    private StubDatabase db;
+
+    private Server server;
+
+    private SelectChannelConnector connector;
+
+    private File root;
+
+    private HttpClient client;
+
+    private HierarchicalINIConfiguration ini;
+
+    @Before
+    public void setup() throws Exception {
+        couch = new StubCouch(0);
+        couch.start();
+        db = couch.createDatabase("db1");
+        db.put(new JSONObject("{_id:\"_design/test\", fulltext:{by_body:{index:\"function(doc) {"
+                + " var ret = new Document(); ret.add(doc.body); ret.add(doc.n, {field:'n', type:'int', store:'yes'});"
+                + " ret.add(doc.body, {field:'kind', index:'not_analyzed', facet:'yes'});"
+                + " if (doc._attachments) { ret.attachment('default', 'note.txt'); } return ret; }\","
+                + " queries:{by_kind:\"kind:$kind AND n<int>:[$lo TO $hi]\"}},"
+                + " sharded:{shards:4, index:\"function(doc) {"
+                + " var ret = new Document(); ret.add(doc.body); ret.add(doc.n, {field:'n', type:'int', store:'yes'});"
+                + " ret.add(doc.body, {field:'kind', index:'not_analyzed', facet:true});"
+                + " return ret; }\"},"
+                + " stored:{source:[\"n\"], index:\"function(doc) {"
+                + " var ret = new Document(); ret.add(doc.body); ret.add(doc.n, {field:'n', type:'int', store:'yes'});"
+                + " return ret; }\"}}}"));
+
+        root = new File("target/indexes/" + getClass().getSimpleName());
+        FileUtils.deleteDirectory(root);
+        ini = new HierarchicalINIConfiguration();
+        ini.setProperty("local.url", couch.getUrl());
+        ini.setProperty("lucene.changes_timeout", 60000);
+        ini.setProperty("lucene.couchdbDocumentSize", 3);
+
+        client = new DefaultHttpClient();
+        server = new Server();
+        connector = new SelectChannelConnector();
+        connector.setHost("localhost");
+        connector.setPort(0);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(new LuceneServlet(HttpClientFactory.getInstance(), root, ini)), "/*");
+        server.setHandler(context);
+        server.start();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        server.stop();
+        couch.stop();
+        client.getConnectionManager().shutdown();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void testIndexAndSearch() throws Exception {
+        db.generate(GENERATOR, 0, 50);
+        assertThat(search("q=even").getInt("total_rows"), is(25));
+        assertThat(search("q=n<int>:[10 TO 19]").getInt("total_rows"), is(10));
+    }
+
+    @Test
+    public void testUpdatesAndDeletes() throws Exception {
+        db.generate(GENERATOR, 0, 10);
+        assertThat(search("q=odd").getInt("total_rows"), is(5));
+
+        db.put(new JSONObject("{_id:\"doc000\", body:\"odd\", n:0}"));
+        db.delete("doc001");
+        db.generate(GENERATOR, 10, 12);
+        assertThat(search("q=odd").getInt("total_rows"), is(6));
+        assertThat(search("q=even").getInt("total_rows"), is(5));
+    }
+
+    @Test
+    public void testIncludeDocs() throws Exception {
+        db.generate(GENERATOR, 0, 4);
+        final JSONObject result = search("q=even&include_docs=true&sort=n<int>");
+        assertThat(result.getJSONArray("rows").length(), is(2));
+        assertThat(result.getJSONArray("rows").getJSONObject(1).getJSONObject("doc").getInt("n"), is(2));
+    }
+
+    @Test
+    public void testIncludeDocsInBatches() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        assertThat(search("q=even").getInt("total_rows"), is(10));
+        final long before = couch.getRequestCount("all_docs");
+        final JSONArray rows = search("q=even&include_docs=true&sort=n<int>").getJSONArray("rows");
+        // Four batches of at most three documents.
+        assertThat(couch.getRequestCount("all_docs") - before, is(4L));
+        assertThat(rows.length(), is(10));
+        for (int i = 0; i < rows.length(); i++) {
+            assertThat(rows.getJSONObject(i).getJSONObject("doc").getInt("n"), is(i * 2));
+        }
+    }
+
+    @Test
+    public void testUnindexableDocumentIsSkipped() throws Exception {
+        db.generate(GENERATOR, 0, 4);
+        // Its untokenized kind is longer than Lucene allows for a term.
+        db.put(new JSONObject().put("_id", "huge").put("body", StringUtils.repeat("x", 40000)).put("n", 99));
+        db.generate(GENERATOR, 4, 8);
+        assertThat(search("q=even").getInt("total_rows"), is(4));
+        assertThat(search("q=n<int>:99").getInt("total_rows"), is(0));
+    }
+
+    @Test
+    public void testIncludeDocsFromCache() throws Exception {
+        // Read when the first request creates the indexer.
+        ini.setProperty("lucene.documentCacheSize", 1024 * 1024);
+        db.generate(GENERATOR, 0, 10);
+        db.put(new JSONObject("{_id:\"doc000\", body:\"even\", n:0, updated:true}"));
+        db.delete("doc002");
+        assertThat(search("q=even").getInt("total_rows"), is(4));
+
+        // The first search fetches the documents and fills the cache.
+        long before = couch.getRequestCount("all_docs");
+        search("q=even&include_docs=true&sort=n<int>");
+        assertThat(couch.getRequestCount("all_docs") > before, is(true));
+
+        before = couch.getRequestCount("all_docs");
+        final JSONArray rows = search("q=even&include_docs=true&sort=n<int>").getJSONArray("rows");
+        assertThat(couch.getRequestCount("all_docs"), is(before));
+        assertThat(rows.length(), is(4));
+        assertThat(rows.getJSONObject(0).getJSONObject("doc").getBoolean("updated"), is(true));
+        assertThat(rows.getJSONObject(1).getJSONObject("doc").getInt("n"), is(4));
+
+        // An update forgets the cached revision.
+        db.put(new JSONObject("{_id:\"doc004\", body:\"even\", n:4, again:true}"));
+        before = couch.getRequestCount("all_docs");
+        final JSONArray updated = search("q=even&include_docs=true&sort=n<int>").getJSONArray("rows");
+        assertThat(couch.getRequestCount("all_docs") > before, is(true));
+        assertThat(updated.getJSONObject(1).getJSONObject("doc").getBoolean("again"), is(true));
+
+        final JSONObject stats = new JSONObject(client.execute(new HttpGet(url("by_body")),
+                new BasicResponseHandler())).getJSONObject("stats").getJSONObject("document_cache");
+        assertThat(stats.getInt("entries"), is(4));
+        assertThat(stats.getLong("hits"), is(7L));
+    }
+
+    @Test
+    public void testResultCache() throws Exception {
+        // Read when the first request creates the indexer.
+        ini.setProperty("lucene.resultCacheSize", 1024 * 1024);
+        db.generate(GENERATOR, 0, 10);
+        final JSONObject first = search("q=even&sort=n<int>&limit=2&counts=[\"kind\"]");
+        final JSONObject second = search("q=even&sort=n<int>&limit=2&counts=[\"kind\"]");
+        assertThat(second.getJSONArray("rows").getJSONObject(1).getString("id"), is("doc002"));
+        assertThat(second.getInt("total_rows"), is(first.getInt("total_rows")));
+        assertThat(second.getJSONObject("counts").getJSONObject("kind").getInt("even"), is(5));
+        assertThat(search("q=even&sort=n<int>&limit=3").getJSONArray("rows").length(), is(3));
+
+        JSONObject stats = resultCacheStats();
+        assertThat(stats.getLong("hits"), is(1L));
+        assertThat(stats.getInt("entries"), is(2));
+
+        // A refreshed reader does not see the old results.
+        db.generate(GENERATOR, 10, 12);
+        assertThat(search("q=even&sort=n<int>&limit=2&counts=[\"kind\"]").getInt("total_rows"), is(6));
+        stats = resultCacheStats();
+        assertThat(stats.getLong("hits"), is(1L));
+        assertThat(stats.getInt("entries"), is(1));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        assertThat(search("q=n<int>:[0 TO 9]&fq=kind:even").getInt("total_rows"), is(5));
+
+        // Filters do not change the scores of the hits.
+        final double score = search("q=even&fq=n<int>:[0 TO 9]").getJSONArray("rows")
+                .getJSONObject(0).getDouble("score");
+        assertThat(score, is(search("q=even").getJSONArray("rows").getJSONObject(0).getDouble("score")));
+        assertThat(search("q=n<int>:[0 TO 9]&fq=kind:even&fq=n<int>:[0 TO 3]").getInt("total_rows"), is(2));
+
+        // Still correct once the reader has new segments.
+        db.generate(GENERATOR, 20, 22);
+        assertThat(search("q=n<int>:[0 TO 99]&fq=kind:even").getInt("total_rows"), is(11));
+
+        final JSONObject stats = new JSONObject(client.execute(new HttpGet(url("by_body")),
+                new BasicResponseHandler())).getJSONObject("stats").getJSONObject("filter_cache");
+        assertThat(stats.getInt("entries"), is(3));
+        assertThat(stats.getLong("hits"), is(2L));
+        assertThat(stats.getLong("misses"), is(3L));
+    }
+
+    @Test
+    public void testQueryTemplates() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        final String query = "template=by_kind&sort=n<int>&params={\"kind\":\"odd\", \"lo\":5, \"hi\":10}";
+        JSONObject result = search(query);
+        assertThat(result.getInt("total_rows"), is(3));
+        assertThat(result.getJSONArray("rows").getJSONObject(0).getString("id"), is("doc005"));
+        result = search(query);
+        assertThat(result.getInt("total_rows"), is(3));
+        assertThat(search("q=kind:odd AND n<int>:[5 TO 10]").getString("q"), is(result.getString("q")));
+
+        final JSONObject stats = new JSONObject(client.execute(new HttpGet(url("by_body")),
+                new BasicResponseHandler())).getJSONObject("stats").getJSONObject("parse_cache");
+        // Bound templates are not cached, so only the ad-hoc query was.
+        assertThat(stats.getLong("hits"), is(0L));
+        assertThat(stats.getLong("misses"), is(1L));
+        assertThat(stats.getInt("entries"), is(1));
+
+        assertThat(status("template=by_kind&params={\"kind\":\"odd\"}"), is(400));
+        assertThat(status("template=missing"), is(400));
+    }
+
+    @Test
+    public void testBadNumericParameters() throws Exception {
+        db.generate(GENERATOR, 0, 10);
+        assertThat(status("q=even&limit=ten"), is(400));
+        assertThat(status("q=even&skip=-1"), is(400));
+        assertThat(status("q=even&highlights=x"), is(400));
+        assertThat(status("q=even&timeout=soon"), is(400));
+        assertThat(status("q=even&analyzer=custom:{\"tokenizer\":\"keyword\"}"), is(400));
+        assertThat(status("q=even&skip=2147483647&limit=1"), is(400));
+        assertThat(status("q=even&limit=0"), is(200));
+    }
+
+    private int status(final String query) throws Exception {
+        try {
+            get(query);
+            return 200;
+        } catch (final HttpResponseException e) {
+            return e.getStatusCode();
+        }
+    }
+
+    private JSONObject resultCacheStats() throws Exception {
+        return new JSONObject(client.execute(new HttpGet(url("by_body")),
+                new BasicResponseHandler())).getJSONObject("stats").getJSONObject("result_cache");
+    }
+
+    @Test
+    public void testIncludeDocsFromIndex() throws Exception {
+        db.generate(GENERATOR, 0, 10);
+        assertThat(search("stored", "q=even").getInt("total_rows"), is(5));
+
+        final long before = couch.getRequestCount("all_docs");
+        final JSONArray rows = search("stored", "q=even&include_docs=true&sort=n<int>&include_fields=n")
+                .getJSONArray("rows");
+        assertThat(couch.getRequestCount("all_docs"), is(before));
+        assertThat(rows.length(), is(5));
+        final JSONObject doc = rows.getJSONObject(1).getJSONObject("doc");
+        assertThat(doc.getString("_id"), is("doc002"));
+        assertThat(doc.getInt("n"), is(2));
+        assertThat(doc.has("body"), is(false));
+        assertThat(rows.getJSONObject(1).getJSONObject("fields").length(), is(1));
+    }
+
+    @Test
+    public void testBookmarks() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        final List<Integer> sorted = new ArrayList<>();
+        for (final JSONObject row : page("by_body", "q=even&sort=\\n<int>&limit=3")) {
+            sorted.add(row.getJSONObject("fields").getInt("n"));
+        }
+        assertThat(sorted, is(Arrays.asList(18, 16, 14, 12, 10, 8, 6, 4, 2, 0)));
+
+        final Set<String> ids = new HashSet<>();
+        for (final JSONObject row : page("sharded", "q=odd&limit=3")) {
+            assertThat(ids.add(row.getString("id")), is(true));
+        }
+        assertThat(ids.size(), is(10));
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        for (final String view : new String[]{"by_body", "sharded"}) {
+            final JSONObject result = search(view, "q=n<int>:[0 TO 6]&counts=[\"kind\"]&limit=1");
+            assertThat(result.getJSONArray("rows").length(), is(1));
+            final JSONObject counts = result.getJSONObject("counts").getJSONObject("kind");
+            assertThat(counts.getInt("even"), is(4));
+            assertThat(counts.getInt("odd"), is(3));
+        }
+    }
+
+    @Test
+    public void testCountsOfUnfacetedField() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        final HttpResponse resp = client.execute(new HttpGet(url("by_body")
+                + "?q=even&counts=" + Utils.urlEncode("[\"default\"]")));
+        assertThat(resp.getStatusLine().getStatusCode(), is(400));
+        assertThat(new JSONObject(EntityUtils.toString(resp.getEntity())).getString("reason"),
+                is("field default is not faceted"));
+        // A field no document has yet just has no counts.
+        assertThat(search("q=even&counts=[\"missing\"]").getJSONObject("counts")
+                .getJSONObject("missing").length(), is(0));
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        for (final String view : new String[]{"by_body", "sharded"}) {
+            final JSONObject n = search(view, "q=odd&ranges={\"n<int>\": {\"small\": \"[0 TO 10}\"}}"
+                    + "&histograms={\"n<int>\": 5}").getJSONObject("ranges").getJSONObject("n<int>");
+            assertThat(n.getLong("count"), is(10L));
+            assertThat(n.getLong("sum"), is(100L));
+            assertThat(n.getJSONObject("buckets").getInt("small"), is(5));
+            assertThat(n.getJSONArray("histogram").length(), is(4));
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        assertThat(search("q=even").getInt("total_rows"), is(10));
+        assertThat(search("sharded", "q=even").getInt("total_rows"), is(10));
+
+        final HttpPost post = new HttpPost("http://localhost:" + connector.getLocalPort() + "/local/db1/_batch");
+        post.setEntity(new StringEntity(new JSONArray()
+                .put(new JSONObject("{view:\"_design/test/by_body\", q:\"even\", sort:\"\\\\n<int>\", limit:2}"))
+                .put(new JSONObject("{view:\"_design/test/sharded\", q:\"odd\", limit:3, include_fields:[\"n\"]}"))
+                .put(new JSONObject("{view:\"_design/test/by_body\", q:\"n<int>:[0 TO 4]\", skip:1}"))
+                .toString()));
+        final JSONArray results = new JSONObject(client.execute(post, new BasicResponseHandler()))
+                .getJSONArray("results");
+        assertThat(results.length(), is(3));
+
+        final JSONArray sorted = results.getJSONObject(0).getJSONArray("rows");
+        assertThat(sorted.length(), is(2));
+        assertThat(sorted.getJSONObject(0).getString("id"), is("doc018"));
+        assertThat(sorted.getJSONObject(1).getString("id"), is("doc016"));
+
+        assertThat(results.getJSONObject(1).getString("view"), is("_design/test/sharded"));
+        assertThat(results.getJSONObject(1).getInt("total_rows"), is(10));
+        assertThat(results.getJSONObject(1).getJSONArray("rows").length(), is(3));
+
+        assertThat(results.getJSONObject(2).getInt("total_rows"), is(5));
+        assertThat(results.getJSONObject(2).getJSONArray("rows").length(), is(4));
+    }
+
+    @Test
+    public void testBatchDefaultOperator() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        assertThat(search("q=even").getInt("total_rows"), is(10));
+        final JSONArray results = batch(new JSONArray()
+                .put(new JSONObject("{view:\"_design/test/by_body\", q:\"even n<int>:1\"}"))
+                .put(new JSONObject("{view:\"_design/test/by_body\", q:\"even n<int>:2\", default_operator:\"AND\"}"))
+                .toString()).getJSONArray("results");
+        assertThat(results.getJSONObject(0).getInt("total_rows"), is(11));
+        assertThat(results.getJSONObject(1).getInt("total_rows"), is(1));
+    }
+
+    @Test
+    public void testBatchTooLarge() throws Exception {
+        ini.setProperty("lucene.maxBatchSize", 2);
+        db.generate(GENERATOR, 0, 10);
+        assertThat(search("q=even").getInt("total_rows"), is(5));
+        final String query = "{view:\"_design/test/by_body\", q:\"even\"}";
+        assertThat(batch("[" + query + "," + query + "]").getJSONArray("results").length(), is(2));
+        try {
+            // Rejected before the malformed rest of the body is read.
+            batch("[" + query + "," + query + "," + query + ", oops");
+            fail("should have been rejected");
+        } catch (final HttpResponseException e) {
+            assertThat(e.getStatusCode(), is(400));
+        }
+    }
+
+    @Test
+    public void testBatchBadPage() throws Exception {
+        db.generate(GENERATOR, 0, 10);
+        assertThat(search("q=even").getInt("total_rows"), is(5));
+        assertThat(batch("[{view:\"_design/test/by_body\", q:\"even\", limit:0}]").getJSONArray("results")
+                .getJSONObject(0).getInt("total_rows"), is(5));
+        for (final String page : new String[]{"limit:-1", "skip:-1", "timeout:-1", "skip:2147483647, limit:1"}) {
+            try {
+                batch("[{view:\"_design/test/by_body\", q:\"even\", " + page + "}]");
+                fail(page + " should have been rejected");
+            } catch (final HttpResponseException e) {
+                assertThat(e.getStatusCode(), is(400));
+            }
+        }
+    }
+
+    private JSONObject batch(final String body) throws Exception {
+        final HttpPost post = new HttpPost("http://localhost:" + connector.getLocalPort() + "/local/db1/_batch");
+        post.setEntity(new StringEntity(body));
+        return new JSONObject(client.execute(post, new BasicResponseHandler()));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        db.generate(GENERATOR, 0, 20);
+        final JSONObject result = search("q=even&sort=\\n<int>&limit=3&timeout=60000");
+        assertThat(result.has("timed_out"), is(false));
+        assertThat(result.getInt("total_rows"), is(10));
+        assertThat(result.getJSONArray("rows").getJSONObject(0).getString("id"), is("doc018"));
+
+        final JSONObject next = search("q=even&sort=\\n<int>&limit=3&timeout=60000&bookmark="
+                + result.getString("bookmark"));
+        assertThat(next.getJSONArray("rows").getJSONObject(0).getString("id"), is("doc012"));
+    }
+
+    @Test
+    public void testJsonpAndDebug() throws Exception {
+        db.generate(GENERATOR, 0, 4);
+        final String jsonp = get("q=even&callback=cb");
+        assertThat(jsonp.startsWith("cb({") && jsonp.endsWith("})"), is(true));
+        final JSONObject result = new JSONObject(jsonp.substring(3, jsonp.length() - 1));
+        assertThat(result.getInt("total_rows"), is(2));
+
+        final String debug = get("q=even&debug=true");
+        assertThat(debug.contains("\n  \"rows\": ["), is(true));
+        assertThat(new JSONObject(debug).getJSONArray("rows").length(), is(2));
+    }
+
+    @Test
+    public void testAttachments() throws Exception {
+        final JSONObject doc = GENERATOR.generate(0);
+        doc.put("_attachments", new JSONObject().put("note.txt", new JSONObject()
+                .put("content_type", "text/plain")
+                .put("data", Base64.encodeBase64String("a rhinoceros in the attachment".getBytes("UTF-8")))));
+        db.put(doc);
+        assertThat(search("q=rhinoceros").getInt("total_rows"), is(1));
+        assertThat(couch.getRequestCount("attachment"), is(1L));
+    }
+
+    @Test
+    public void testShardedView() throws Exception {
+        db.generate(GENERATOR, 0, 100);
+        assertThat(search("sharded", "q=even").getInt("total_rows"), is(50));
+
+        final JSONArray rows = search("sharded", "q=n<int>:[10 TO 19]&sort=n<int>&limit=3")
+                .getJSONArray("rows");
+        assertThat(rows.length(), is(3));
+        for (int i = 0; i < rows.length(); i++) {
+            assertThat(rows.getJSONObject(i).getString("id"), is(String.format("doc%03d", 10 + i)));
+        }
+
+        db.put(new JSONObject("{_id:\"doc000\", body:\"odd\", n:0}"));
+        db.delete("doc001");
+        assertThat(search("sharded", "q=odd").getInt("total_rows"), is(50));
+        assertThat(search("sharded", "q=odd&include_docs=true&limit=100")
+                .getJSONArray("rows").length(), is(50));
+
+        final JSONObject info = new JSONObject(client.execute(new HttpGet(url("sharded")),
+                new BasicResponseHandler()));
+        assertThat(info.getInt("shards"), is(4));
+        assertThat(info.getInt("doc_count"), is(search("sharded", "q=*:*").getInt("total_rows")));
+    }
+
+    /**
+     * Follows bookmarks until a page comes back empty.
+     */
+    private List<JSONObject> page(final String view, final String query) throws Exception {
+        final List<JSONObject> result = new ArrayList<>();
+        String bookmark = null;
+        while (true) {
+            final JSONObject page = search(view, bookmark == null ? query : query + "&bookmark=" + bookmark);
+            final JSONArray rows = page.getJSONArray("rows");
+            if (rows.length() == 0) {
+                assertThat(page.has("bookmark"), is(false));
+                return result;
+            }
+            assertThat(rows.length() <= 3, is(true));
+            for (int i = 0; i < rows.length(); i++) {
+                result.add(rows.getJSONObject(i));
+            }
+            bookmark = page.getString("bookmark");
+        }
+    }
+
+    private JSONObject search(final String query) throws Exception {
+        return search("by_body", query);
+    }
+
+    private JSONObject search(final String view, final String query) throws Exception {
+        return new JSONObject(get(view, query));
+    }
+
+    private String get(final String query) throws Exception {
+        return get("by_body", query);
+    }
+
+    private String get(final String view, final String query) throws Exception {
+        final String[] params = query.split("&");
+        final StringBuilder url = new StringBuilder(url(view) + "?");
+        for (int i = 0; i < params.length; i++) {
+            final String[] kv = params[i].split("=", 2);
+            url.append(i == 0 ? "" : "&").append(kv[0]).append('=').append(Utils.urlEncode(kv[1]));
+        }
+        return client.execute(new HttpGet(url.toString()), new BasicResponseHandler());
+    }
+
+    private String url(final String view) {
+        return "http://localhost:" + connector.getLocalPort() + "/local/db1/_design/test/" + view;
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.CouchDocument;
+import org.apache.lucene.document.Document;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DocumentCacheTest {
+
+    @Test
+    public void testUpdateAndDelete() throws Exception {
+        final DocumentCache cache = new DocumentCache(1024 * 1024);
+        cache.put(doc("a", "1-x", "first"));
+        assertThat(cache.get("a", "1-x").getString("body"), is("first"));
+
+        cache.put(doc("a", "2-y", "second"));
+        assertThat(cache.get("a", "2-y").getString("body"), is("second"));
+
+        cache.put(CouchDocument.deletedDocument("a"));
+        assertThat(cache.get("a", "2-y"), nullValue());
+
+        final JSONObject stats = cache.getStats();
+        assertThat(stats.getInt("entries"), is(0));
+        assertThat(stats.getLong("bytes"), is(0L));
+        assertThat(stats.getLong("hits"), is(2L));
+        assertThat(stats.getLong("misses"), is(1L));
+        assertThat(stats.getLong("invalidations"), is(2L));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final DocumentCache cache = new DocumentCache(1024 * 1024);
+        cache.put(doc("a", "1-x", "first"));
+        // The change that was already fetched keeps its entry.
+        cache.invalidate(doc("a", "1-x", "first"));
+        assertThat(cache.get("a", "1-x").getString("body"), is("first"));
+
+        cache.invalidate(doc("a", "2-y", "second"));
+        assertThat(cache.get("a", "2-y"), nullValue());
+        // Changes to uncached documents are ignored.
+        cache.invalidate(doc("b", "1-x", "other"));
+
+        final JSONObject stats = cache.getStats();
+        assertThat(stats.getInt("entries"), is(0));
+        assertThat(stats.getLong("invalidations"), is(1L));
+    }
+
+    @Test
+    public void testOtherRevisionIsMiss() throws Exception {
+        final DocumentCache cache = new DocumentCache(1024 * 1024);
+        cache.put(doc("a", "2-y", "second"));
+        // A hit from an index that has not seen the update yet.
+        assertThat(cache.get("a", "1-x"), nullValue());
+        // A hit from an index built without revisions.
+        assertThat(cache.get("a", null), nullValue());
+        assertThat(cache.get("a", "2-y").getString("body"), is("second"));
+        assertThat(cache.getStats().getLong("misses"), is(2L));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final DocumentCache cache = new DocumentCache(1000);
+        cache.put(doc("a", "1-x", "a"));
+        cache.put(doc("b", "1-x", "b"));
+        cache.put(doc("c", "1-x", "c"));
+        cache.get("a", "1-x");
+        for (int i = 0; i < 10 && cache.getStats().getLong("evictions") == 0; i++) {
+            cache.put(doc("d" + i, "1-x", "d"));
+        }
+        assertThat(cache.getStats().getLong("bytes") <= 1000, is(true));
+        assertThat(cache.get("b", "1-x"), nullValue());
+        assertThat(cache.get("a", "1-x").getString("body"), is("a"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final DocumentCache cache = new DocumentCache(0);
+        cache.put(doc("a", "1-x", "first"));
+        assertThat(cache.isEnabled(), is(false));
+        assertThat(cache.get("a", "1-x"), nullValue());
+    }
+
+    @Test
+    public void testRevisionOnlyStoredWhenEnabled() throws Exception {
+        final Document indexed = new Document();
+        new DocumentCache(0).addRevision(Collections.singleton(indexed), doc("a", "1-x", "first"));
+        assertThat(indexed.get(DocumentCache.REVISION), nullValue());
+
+        new DocumentCache(1024).addRevision(Collections.singleton(indexed), doc("a", "1-x", "first"));
+        assertThat(indexed.get(DocumentCache.REVISION), is("1-x"));
+        assertThat(indexed.get("_rev"), nullValue());
+    }
+
+    private CouchDocument doc(final String id, final String rev, final String body) throws Exception {
+        return new CouchDocument(new JSONObject().put("_id", id).put("_rev", rev).put("body", body));
+    }
+
+}
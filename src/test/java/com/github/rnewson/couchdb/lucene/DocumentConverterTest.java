@@ -315,6 +315,33 @@ public class DocumentConverterTest {
         assertThat(result.size(), is(0));
     }
 
+    @Test
+    public void testNestedObjects() throws Exception {
+        final String fun = "function(doc) { var ret=new Document(); ret.add(doc.a.b.c); ret.add(doc.list[1].name); "
+                + "ret.add('b' in doc.a); ret.add(typeof doc.a); return ret; }";
+        final DocumentConverter converter = new DocumentConverter(context, view(fun));
+        final Collection<Document> result = converter.convert(
+                doc("{_id:\"hi\", a:{b:{c:\"deep\"}}, list:[{name:\"x\"},{name:\"y\"}]}"),
+                settings(),
+                null);
+        assertThat(result.iterator().next().getValues(Constants.DEFAULT_FIELD),
+                is(new String[]{"deep", "y", "true", "object"}));
+    }
+
+    @Test
+    public void testStringifyDocument() throws Exception {
+        final String fun = "function(doc) { var ret=new Document(); doc.added = 1; delete doc.gone; "
+                + "ret.add(JSON.stringify(doc.nested), {\"field\":\"s\"}); ret.add(Object.keys(doc).join(','), {\"field\":\"k\"}); return ret; }";
+        final DocumentConverter converter = new DocumentConverter(context, view(fun));
+        final Collection<Document> result = converter.convert(
+                doc("{_id:\"hi\", gone:true, nested:{arr:[1,null]}}"),
+                settings(),
+                null);
+        assertThat(result.iterator().next().get("s"), is("{\"arr\":[1,null]}"));
+        assertThat(result.iterator().next().get("k").contains("gone"), is(false));
+        assertThat(result.iterator().next().get("k").endsWith("added"), is(true));
+    }
+
     private CouchDocument doc(final String json) throws JSONException {
         return new CouchDocument(new JSONObject(json));
     }
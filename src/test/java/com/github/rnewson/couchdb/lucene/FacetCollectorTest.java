@@ -0,0 +1,107 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FacetCollectorTest {
+
+    private static final String[] COLOURS = {"red", "green", "blue"};
+
+    private RAMDirectory dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new RAMDirectory();
+        final IndexWriterConfig config = new IndexWriterConfig(Constants.VERSION, Constants.ANALYZER);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        final IndexWriter writer = new IndexWriter(dir, config);
+        for (int i = 0; i < 12; i++) {
+            final Document doc = new Document();
+            doc.add(new StringField("parity", i % 2 == 0 ? "even" : "odd", Store.NO));
+            doc.add(new SortedSetDocValuesField("colour", new BytesRef(COLOURS[i % 3])));
+            if (i % 4 == 0) {
+                doc.add(new SortedSetDocValuesField("colour", new BytesRef("striped")));
+            }
+            writer.addDocument(doc);
+            // Segments that see different subsets of the values.
+            if (i % 5 == 4) {
+                writer.commit();
+            }
+        }
+        writer.close();
+    }
+
+    @After
+    public void teardown() {
+        dir.close();
+    }
+
+    @Test
+    public void countsAcrossSegments() throws Exception {
+        final DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertThat(reader.leaves().size(), is(3));
+            final IndexSearcher searcher = new IndexSearcher(reader);
+
+            FacetCollector facets = new FacetCollector(reader, Arrays.asList("colour", "missing"));
+            searcher.search(new MatchAllDocsQuery(), facets);
+            JSONObject counts = facets.getCounts();
+            final JSONObject colours = counts.getJSONObject("colour");
+            assertThat(colours.length(), is(4));
+            assertThat(colours.getInt("red"), is(4));
+            assertThat(colours.getInt("green"), is(4));
+            assertThat(colours.getInt("blue"), is(4));
+            assertThat(colours.getInt("striped"), is(3));
+            assertThat(counts.getJSONObject("missing").length(), is(0));
+
+            facets = new FacetCollector(reader, Arrays.asList("colour"));
+            searcher.search(new TermQuery(new Term("parity", "odd")), facets);
+            counts = facets.getCounts().getJSONObject("colour");
+            assertThat(counts.getInt("red"), is(2));
+            assertThat(counts.getInt("green"), is(2));
+            assertThat(counts.getInt("blue"), is(2));
+            assertThat(counts.has("striped"), is(false));
+        } finally {
+            reader.close();
+        }
+    }
+
+}
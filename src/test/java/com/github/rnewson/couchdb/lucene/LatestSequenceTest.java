@@ -0,0 +1,123 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.Database;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch;
+import com.github.rnewson.couchdb.lucene.couchdb.StubCouch.StubDatabase;
+import com.github.rnewson.couchdb.lucene.couchdb.UpdateSequence;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LatestSequenceTest {
+
+    private StubCouch couch;
+
+    private StubDatabase db;
+
+    private Database database;
+
+    @Before
+    public void setup() throws Exception {
+        couch = new StubCouch(0);
+        couch.start();
+        db = couch.createDatabase("db1");
+        database = new Database(HttpClientFactory.getInstance(), couch.getUrl(), "db1");
+        db.put(new JSONObject("{_id:\"doc1\"}"));
+    }
+
+    @After
+    public void teardown() throws Exception {
+        couch.stop();
+    }
+
+    @Test
+    public void testAlwaysAsksWithoutMaxAge() throws Exception {
+        final LatestSequence latest = new LatestSequence(database, 0);
+        assertThat(latest.get().toString(), is("1"));
+        db.put(new JSONObject("{_id:\"doc2\"}"));
+        assertThat(latest.get().toString(), is("2"));
+        assertThat(couch.getRequestCount("changes"), is(2L));
+    }
+
+    @Test
+    public void testReusesFreshValue() throws Exception {
+        final LatestSequence latest = new LatestSequence(database, MINUTES.toNanos(1));
+        latest.get();
+        db.put(new JSONObject("{_id:\"doc2\"}"));
+        assertThat(latest.get().toString(), is("1"));
+        assertThat(couch.getRequestCount("changes"), is(1L));
+        assertThat(latest.getStats().getLong("cached"), is(1L));
+    }
+
+    @Test
+    public void testChangesFeedKeepsValueFresh() throws Exception {
+        final LatestSequence latest = new LatestSequence(database, MINUTES.toNanos(1));
+        latest.observe(UpdateSequence.parseUpdateSequence("7"));
+        latest.caughtUp();
+        assertThat(latest.get().toString(), is("7"));
+        assertThat(couch.getRequestCount("changes"), is(0L));
+    }
+
+    @Test
+    public void testPollsOnlyWhenAsked() throws Exception {
+        final LatestSequence latest = new LatestSequence(database, MINUTES.toNanos(1));
+        latest.poll();
+        assertThat(couch.getRequestCount("changes"), is(0L));
+        latest.get();
+        db.put(new JSONObject("{_id:\"doc2\"}"));
+        latest.poll();
+        assertThat(couch.getRequestCount("changes"), is(2L));
+        assertThat(latest.get().toString(), is("2"));
+    }
+
+    @Test
+    public void testConcurrentCallersShareRequests() throws Exception {
+        final LatestSequence latest = new LatestSequence(database, 0);
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<UpdateSequence>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(new Callable<UpdateSequence>() {
+
+                    public UpdateSequence call() throws Exception {
+                        return latest.get();
+                    }
+                }));
+            }
+            for (final Future<UpdateSequence> result : results) {
+                assertThat(result.get().toString(), is("1"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        final long fetches = latest.getStats().getLong("fetches");
+        assertThat(fetches + latest.getStats().getLong("coalesced"), is(200L));
+        assertThat(couch.getRequestCount("changes"), is(fetches));
+    }
+
+}
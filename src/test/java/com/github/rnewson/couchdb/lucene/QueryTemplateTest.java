@@ -0,0 +1,93 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class QueryTemplateTest {
+
+    @Test
+    public void testBind() throws Exception {
+        final QueryTemplate template = new QueryTemplate("owner:$owner AND status:$status");
+        assertThat(template.getParameters(), is(Arrays.asList("owner", "status")));
+        assertThat(template.bind(new JSONObject("{owner:\"bob\", status:\"open\"}")),
+                is("owner:bob AND status:open"));
+    }
+
+    @Test
+    public void testValuesAreEscaped() throws Exception {
+        final QueryTemplate template = new QueryTemplate("owner:$owner");
+        assertThat(template.bind(new JSONObject("{owner:\"bob OR *:*\"}")),
+                is("owner:\"bob OR *:*\""));
+        assertThat(template.bind(new JSONObject("{owner:\"a:b\"}")), is("owner:a\\:b"));
+        assertThat(template.bind(new JSONObject("{owner:\"say \\\"hi\\\"\"}")),
+                is("owner:\"say \\\"hi\\\"\""));
+    }
+
+    @Test
+    public void testOperatorsAreQuoted() throws Exception {
+        final QueryTemplate template = new QueryTemplate("owner:$owner AND status:$status");
+        final String query = template.bind(new JSONObject("{owner:\"OR\", status:\"NOT\"}"));
+        assertThat(query, is("owner:\"OR\" AND status:\"NOT\""));
+        final QueryParser parser = new QueryParser(Constants.VERSION, Constants.DEFAULT_FIELD,
+                new WhitespaceAnalyzer(Constants.VERSION));
+        assertThat(parser.parse(query).toString(), is("+owner:OR +status:NOT"));
+        // Only upper case words are operators.
+        assertThat(template.bind(new JSONObject("{owner:\"or\", status:\"ToDo\"}")),
+                is("owner:or AND status:ToDo"));
+    }
+
+    @Test
+    public void testPhraseParameters() throws Exception {
+        final QueryTemplate template = new QueryTemplate("title:\"$title\" AND owner:$owner");
+        final String query = template.bind(new JSONObject("{title:\"war and \\\"peace\\\"\", owner:\"bob smith\"}"));
+        assertThat(query, is("title:\"war and \\\"peace\\\"\" AND owner:\"bob smith\""));
+        final QueryParser parser = new QueryParser(Constants.VERSION, Constants.DEFAULT_FIELD,
+                new WhitespaceAnalyzer(Constants.VERSION));
+        assertThat(parser.parse(query).toString(), is("+title:\"war and \"peace\"\" +owner:\"bob smith\""));
+        // An escaped quote does not open a phrase.
+        assertThat(new QueryTemplate("title:\\\"$title").bind(new JSONObject("{title:\"a b\"}")),
+                is("title:\\\"\"a b\""));
+    }
+
+    @Test
+    public void testNumbersAndDollars() throws Exception {
+        final QueryTemplate template = new QueryTemplate("n<int>:[$lo TO $hi] AND price:$$5");
+        assertThat(template.bind(new JSONObject("{lo:1, hi:10}")), is("n<int>:[1 TO 10] AND price:$5"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testMissingParameter() throws Exception {
+        new QueryTemplate("owner:$owner").bind(new JSONObject());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testBadTemplate() throws Exception {
+        new QueryTemplate("price:$5");
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.couchdb.FieldType;
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class RangeCollectorTest {
+
+    private RAMDirectory dir;
+
+    private DirectoryReader reader;
+
+    @Before
+    public void setup() throws Exception {
+        dir = new RAMDirectory();
+        final IndexWriterConfig config = new IndexWriterConfig(Constants.VERSION, Constants.ANALYZER);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        final IndexWriter writer = new IndexWriter(dir, config);
+        final long start = FieldType.toDate("2014-01-01T00:00:00+0000");
+        for (int i = 0; i < 10; i++) {
+            final Document doc = new Document();
+            doc.add(new StringField("parity", i % 2 == 0 ? "even" : "odd", Store.NO));
+            doc.add(new IntField("n", i, Store.NO));
+            // Twelve hours apart.
+            doc.add(new LongField("created", start + i * 12 * 3600 * 1000L, Store.NO));
+            // Beyond the integers a double holds exactly.
+            doc.add(new LongField("big", (1L << 53) + i, Store.NO));
+            if (i != 9) {
+                doc.add(new DoubleField("price", i * 1.5, Store.NO));
+            }
+            writer.addDocument(doc);
+            if (i % 4 == 3) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        reader = DirectoryReader.open(dir);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void statsAndBuckets() throws Exception {
+        final JSONObject ranges = search(new JSONObject(
+                "{\"n<int>\": {\"low\": \"[0 TO 3}\", \"high\": \"{3 TO *]\"}, \"price<double>\": {}}"), null);
+
+        final JSONObject n = ranges.getJSONObject("n<int>");
+        assertThat(n.getLong("count"), is(10L));
+        assertThat(n.getLong("min"), is(0L));
+        assertThat(n.getLong("max"), is(9L));
+        assertThat(n.getLong("sum"), is(45L));
+        assertThat(n.getDouble("avg"), is(4.5));
+        assertThat(n.getJSONObject("buckets").getInt("low"), is(3));
+        assertThat(n.getJSONObject("buckets").getInt("high"), is(6));
+
+        // The last document has no price.
+        final JSONObject price = ranges.getJSONObject("price<double>");
+        assertThat(price.getLong("count"), is(9L));
+        assertThat(price.getDouble("max"), is(12.0));
+        assertThat(price.has("buckets"), is(false));
+    }
+
+    @Test
+    public void dateHistogram() throws Exception {
+        final JSONObject created = search(null, new JSONObject("{\"created<date>\": \"1d\"}"))
+                .getJSONObject("created<date>");
+        final JSONArray histogram = created.getJSONArray("histogram");
+        assertThat(histogram.length(), is(5));
+        assertThat(histogram.getJSONObject(0).getLong("key"), is(FieldType.toDate("2014-01-01T00:00:00+0000")));
+        assertThat(histogram.getJSONObject(4).getLong("key"), is(FieldType.toDate("2014-01-05T00:00:00+0000")));
+        for (int i = 0; i < histogram.length(); i++) {
+            assertThat(histogram.getJSONObject(i).getInt("count"), is(2));
+        }
+    }
+
+    @Test
+    public void onlyHits() throws Exception {
+        final RangeCollector collector = new RangeCollector(null, new JSONObject("{\"n<int>\": 4}"));
+        new IndexSearcher(reader).search(new TermQuery(new Term("parity", "odd")), collector);
+        final JSONObject n = collector.getRanges().getJSONObject("n<int>");
+        assertThat(n.getLong("sum"), is(25L));
+        final JSONArray histogram = n.getJSONArray("histogram");
+        assertThat(histogram.length(), is(3));
+        assertThat(histogram.getJSONObject(1).getLong("key"), is(4L));
+        assertThat(histogram.getJSONObject(1).getInt("count"), is(2));
+    }
+
+    @Test
+    public void exactLongs() throws Exception {
+        final JSONObject big = search(null, new JSONObject("{\"big<long>\": 2}")).getJSONObject("big<long>");
+        assertThat(big.getLong("min"), is(1L << 53));
+        assertThat(big.getLong("max"), is((1L << 53) + 9));
+        assertThat(big.getLong("sum"), is(10 * (1L << 53) + 45));
+        final JSONArray histogram = big.getJSONArray("histogram");
+        assertThat(histogram.length(), is(5));
+        assertThat(histogram.getJSONObject(1).getLong("key"), is((1L << 53) + 2));
+        assertThat(histogram.getJSONObject(1).getInt("count"), is(2));
+    }
+
+    @Test
+    public void negativeLongHistogram() throws Exception {
+        final RAMDirectory negatives = new RAMDirectory();
+        final IndexWriter writer = new IndexWriter(negatives,
+                new IndexWriterConfig(Constants.VERSION, Constants.ANALYZER));
+        for (final long value : new long[]{-7, -5, -1, 0, 4}) {
+            final Document doc = new Document();
+            doc.add(new LongField("v", value, Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.close();
+        final DirectoryReader negativeReader = DirectoryReader.open(negatives);
+        try {
+            final RangeCollector collector = new RangeCollector(null, new JSONObject("{\"v<long>\": 5}"));
+            new IndexSearcher(negativeReader).search(new MatchAllDocsQuery(), collector);
+            final JSONObject v = collector.getRanges().getJSONObject("v<long>");
+            assertThat(v.getLong("min"), is(-7L));
+            assertThat(v.getLong("sum"), is(-9L));
+            final JSONArray histogram = v.getJSONArray("histogram");
+            assertThat(histogram.length(), is(3));
+            assertThat(histogram.getJSONObject(0).getLong("key"), is(-10L));
+            assertThat(histogram.getJSONObject(0).getInt("count"), is(1));
+            assertThat(histogram.getJSONObject(1).getLong("key"), is(-5L));
+            assertThat(histogram.getJSONObject(1).getInt("count"), is(2));
+            assertThat(histogram.getJSONObject(2).getLong("key"), is(0L));
+            assertThat(histogram.getJSONObject(2).getInt("count"), is(2));
+        } finally {
+            negativeReader.close();
+            negatives.close();
+        }
+    }
+
+    @Test
+    public void floorDiv() {
+        assertThat(RangeCollector.floorDiv(-1, 5), is(-1L));
+        assertThat(RangeCollector.floorDiv(-5, 5), is(-1L));
+        assertThat(RangeCollector.floorDiv(-6, 5), is(-2L));
+        assertThat(RangeCollector.floorDiv(4, 5), is(0L));
+        assertThat(RangeCollector.floorDiv(Long.MIN_VALUE, 1L << 40), is(-(1L << 23)));
+    }
+
+    @Test
+    public void bucketLimit() throws Exception {
+        new RangeCollector(null, new JSONObject("{\"created<date>\": \"1d\", \"price<double>\": 0.5}"))
+                .checkBuckets(reader, 100);
+        for (final String histogram : new String[]{"{\"created<date>\": \"1ms\"}", "{\"price<double>\": 0.000001}"}) {
+            try {
+                new RangeCollector(null, new JSONObject(histogram)).checkBuckets(reader, 100);
+                fail(histogram + " should have been rejected");
+            } catch (final ParseException e) {
+                // Expected.
+            }
+        }
+        // A field that is not in the index has no buckets.
+        new RangeCollector(null, new JSONObject("{\"missing<long>\": 1}")).checkBuckets(reader, 1);
+    }
+
+    @Test(expected = ParseException.class)
+    public void stringField() throws Exception {
+        new RangeCollector(new JSONObject("{\"parity\": {}}"), null);
+    }
+
+    @Test(expected = ParseException.class)
+    public void badRange() throws Exception {
+        new RangeCollector(new JSONObject("{\"n<int>\": {\"x\": \"0 - 3\"}}"), null);
+    }
+
+    private JSONObject search(final JSONObject ranges, final JSONObject histograms) throws Exception {
+        final RangeCollector collector = new RangeCollector(ranges, histograms);
+        new IndexSearcher(reader).search(new MatchAllDocsQuery(), collector);
+        return collector.getRanges();
+    }
+
+}
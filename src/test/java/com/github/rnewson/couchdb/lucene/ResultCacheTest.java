@@ -0,0 +1,106 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ResultCacheTest {
+
+    @Test
+    public void testKeys() throws Exception {
+        final ResultCache cache = new ResultCache(1024 * 1024);
+        cache.put(key("a", "n=25", 1), result(10));
+        assertThat(cache.get(key("a", "n=25", 1)), notNullValue());
+        assertThat(cache.get(key("a", "n=50", 1)), nullValue());
+        assertThat(cache.get(key("b", "n=25", 1)), nullValue());
+        assertThat(cache.get(key("a", "n=25", 2)), nullValue());
+
+        final JSONObject stats = cache.getStats();
+        assertThat(stats.getInt("entries"), is(1));
+        assertThat(stats.getLong("hits"), is(1L));
+        assertThat(stats.getLong("misses"), is(3L));
+        assertThat(stats.getDouble("hit_rate"), is(0.25));
+    }
+
+    @Test
+    public void testNewerReader() throws Exception {
+        final ResultCache cache = new ResultCache(1024 * 1024);
+        cache.put(key("a", "n=25", 1), result(10));
+        cache.put(key("b", "n=25", 2), result(10));
+        assertThat(cache.get(key("a", "n=25", 1)), nullValue());
+
+        // A search that finishes on a reader that has been replaced.
+        cache.put(key("a", "n=25", 1), result(10));
+        assertThat(cache.get(key("a", "n=25", 1)), nullValue());
+        assertThat(cache.getStats().getInt("entries"), is(1));
+
+        cache.clear();
+        assertThat(cache.get(key("b", "n=25", 2)), nullValue());
+        assertThat(cache.getStats().getLong("clears"), is(2L));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        final ResultCache cache = new ResultCache(8000);
+        cache.put(key("a", "", 1), result(10));
+        cache.put(key("b", "", 1), result(10));
+        cache.get(key("a", "", 1));
+        for (int i = 0; i < 20 && cache.getStats().getLong("evictions") == 0; i++) {
+            cache.put(key("c" + i, "", 1), result(10));
+        }
+        assertThat(cache.getStats().getLong("bytes") <= 8000, is(true));
+        assertThat(cache.get(key("b", "", 1)), nullValue());
+        assertThat(cache.get(key("a", "", 1)), notNullValue());
+
+        // Too big for the budget.
+        cache.put(key("d", "", 1), result(1000));
+        assertThat(cache.get(key("d", "", 1)), nullValue());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        final ResultCache cache = new ResultCache(0);
+        cache.put(key("a", "", 1), result(1));
+        assertThat(cache.isEnabled(), is(false));
+        assertThat(cache.get(key("a", "", 1)), nullValue());
+    }
+
+    private ResultCache.Key key(final String term, final String params, final long version) {
+        final Query query = new TermQuery(new Term("default", term));
+        return new ResultCache.Key(query, null, params, version);
+    }
+
+    private ResultCache.Result result(final int hits) {
+        final ScoreDoc[] scoreDocs = new ScoreDoc[hits];
+        for (int i = 0; i < hits; i++) {
+            scoreDocs[i] = new ScoreDoc(i, 1.0f);
+        }
+        return new ResultCache.Result(new TopDocs(hits, scoreDocs, 1.0f), null, null);
+    }
+
+}
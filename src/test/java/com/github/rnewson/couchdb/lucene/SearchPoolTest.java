@@ -0,0 +1,187 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import com.github.rnewson.couchdb.lucene.util.Constants;
+import org.apache.commons.configuration.HierarchicalINIConfiguration;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SearchPoolTest {
+
+    private SearchPool pool;
+
+    @Before
+    public void setup() {
+        final HierarchicalINIConfiguration ini = new HierarchicalINIConfiguration();
+        ini.setProperty("lucene.maxConcurrentSearches", 2);
+        ini.setProperty("lucene.searchThreads", 2);
+        ini.setProperty("lucene.timeout", 10);
+        pool = new SearchPool(ini);
+    }
+
+    @After
+    public void teardown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testAdmission() throws Exception {
+        assertThat(pool.admit(), is(true));
+        assertThat(pool.admit(), is(true));
+        assertThat(pool.admit(), is(false));
+        pool.leave();
+        assertThat(pool.admit(), is(true));
+
+        final JSONObject stats = pool.getStats();
+        assertThat(stats.getInt("searches"), is(2));
+        assertThat(stats.getLong("admitted"), is(3L));
+        assertThat(stats.getLong("rejected"), is(1L));
+    }
+
+    @Test
+    public void testBatchAdmission() throws Exception {
+        assertThat(pool.admit(), is(true));
+        // A batch larger than the limit needs every search.
+        assertThat(pool.admit(5), is(false));
+        pool.leave();
+        assertThat(pool.admit(5), is(true));
+        assertThat(pool.admit(), is(false));
+        pool.leave(5);
+        assertThat(pool.admit(2), is(true));
+        assertThat(pool.getStats().getInt("searches"), is(2));
+    }
+
+    @Test
+    public void testSearchesSegmentsOnPool() throws Exception {
+        final DirectoryReader reader = DirectoryReader.open(newIndex(10));
+        try {
+            final IndexSearcher searcher = pool.getSearcherFactory().newSearcher(reader);
+            assertThat(reader.leaves().size(), is(10));
+            assertThat(searcher.search(new TermQuery(new Term("parity", "even")), 10).totalHits, is(5));
+            assertThat(pool.getStats().getInt("threads"), is(2));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testCancellableSearchRunsOnPool() throws Exception {
+        final DirectoryReader reader = DirectoryReader.open(newIndex(10));
+        try {
+            final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+            final Filter even = new QueryWrapperFilter(new TermQuery(new Term("parity", "even")));
+            final Filter filter = new Filter() {
+
+                @Override
+                public DocIdSet getDocIdSet(final AtomicReaderContext context, final Bits acceptDocs)
+                        throws IOException {
+                    threads.add(Thread.currentThread().getName());
+                    return even.getDocIdSet(context, acceptDocs);
+                }
+            };
+            final Cancellation cancellation = new Cancellation(new StringWriter(), 60000);
+            final CancellableSearcher searcher = pool.newSearcher(reader, cancellation, 0);
+            assertThat(searcher.searchAfter(null, new MatchAllDocsQuery(), filter, 10).totalHits, is(5));
+            assertThat(threads.isEmpty(), is(false));
+            for (final String thread : threads) {
+                assertThat(thread.startsWith("searcher-"), is(true));
+            }
+            assertThat(searcher.isTimedOut(), is(false));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testCancelledSearchStopsOnPool() throws Exception {
+        final DirectoryReader reader = DirectoryReader.open(newIndex(10));
+        try {
+            final Writer disconnected = new Writer() {
+
+                @Override
+                public void write(final char[] buf, final int off, final int len) throws IOException {
+                    throw new IOException("Broken pipe");
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    throw new IOException("Broken pipe");
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+            final Cancellation cancellation = new Cancellation(disconnected, 0);
+            final CancellableSearcher searcher = pool.newSearcher(reader, cancellation, 0);
+            // The slices probe the client while this thread waits for them.
+            assertThat(searcher.searchAfter(null, new MatchAllDocsQuery(), 10).totalHits, is(0));
+            assertThat(cancellation.isCancelled(), is(true));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * An index with one segment per document.
+     */
+    private RAMDirectory newIndex(final int docs) throws IOException {
+        final RAMDirectory dir = new RAMDirectory();
+        final IndexWriterConfig config = new IndexWriterConfig(Constants.VERSION, Constants.ANALYZER);
+        config.setMergePolicy(NoMergePolicy.INSTANCE);
+        final IndexWriter writer = new IndexWriter(dir, config);
+        for (int i = 0; i < docs; i++) {
+            final Document doc = new Document();
+            doc.add(new StringField("parity", i % 2 == 0 ? "even" : "odd", Store.NO));
+            writer.addDocument(doc);
+            writer.commit();
+        }
+        writer.close();
+        return dir;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene;
+
+import org.apache.lucene.document.Document;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class StoredSourceTest {
+
+    private static final String DOC = "{_id:\"a\", _rev:\"1-x\", title:\"hello\", body:\"world\","
+            + " author:{name:\"bob\", email:\"bob@example.com\"}, tags:[\"x\",\"y\"]}";
+
+    @Test
+    public void testWholeDocument() throws Exception {
+        final Document doc = new Document();
+        StoredSource.add(Collections.singletonList(doc), new JSONObject(DOC), Collections.<String>emptyList());
+        final JSONObject source = StoredSource.get(doc);
+        assertThat(source.getString("body"), is("world"));
+        assertThat(source.getJSONArray("tags").length(), is(2));
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        final JSONObject source = StoredSource.project(new JSONObject(DOC),
+                Arrays.asList("title", "author.name", "missing", "title.nested"));
+        assertThat(source.length(), is(4));
+        assertThat(source.getString("_id"), is("a"));
+        assertThat(source.getString("_rev"), is("1-x"));
+        assertThat(source.getString("title"), is("hello"));
+        assertThat(source.getJSONObject("author").length(), is(1));
+        assertThat(source.getJSONObject("author").getString("name"), is("bob"));
+    }
+
+    @Test
+    public void testNothingStored() throws Exception {
+        assertThat(StoredSource.get(new Document()), is(nullValue()));
+    }
+
+}
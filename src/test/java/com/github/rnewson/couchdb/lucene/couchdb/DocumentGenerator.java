@@ -0,0 +1,31 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.couchdb;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Produces the n'th synthetic document for a {@link StubCouch} database.
+ * Documents must have an _id and may carry inline _attachments just as
+ * they would be PUT to CouchDB.
+ */
+public interface DocumentGenerator {
+
+    JSONObject generate(int n) throws JSONException;
+
+}
@@ -0,0 +1,657 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.couchdb;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for CouchDB, holding its databases in memory. It
+ * speaks enough of the CouchDB 1.x HTTP API for couchdb-lucene to index
+ * and search against it; database info, continuous and normal _changes
+ * with heartbeats, _all_docs with key ranges or keys, documents, _local
+ * documents and attachments.
+ *
+ * @author rnewson
+ */
+public final class StubCouch {
+
+    /**
+     * One in-memory database. Every write gets the next update sequence and
+     * wakes up any continuous changes feeds.
+     */
+    public static final class StubDatabase {
+
+        private final String name;
+
+        private final SortedMap<String, StubDocument> docs = new TreeMap<>();
+
+        private final SortedMap<Long, StubDocument> changes = new TreeMap<>();
+
+        private final Map<String, JSONObject> locals = new HashMap<>();
+
+        private long seq;
+
+        private StubDatabase(final String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized long getUpdateSequence() {
+            return seq;
+        }
+
+        public synchronized int getDocCount() {
+            int result = 0;
+            for (final StubDocument doc : docs.values()) {
+                if (!doc.deleted) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Creates or updates a document, ignoring any _rev in the body.
+         */
+        public synchronized String put(final JSONObject body) throws JSONException {
+            final String id = body.getString("_id");
+            StubDocument doc = docs.get(id);
+            if (doc == null) {
+                doc = new StubDocument(id);
+                docs.put(id, doc);
+            } else {
+                changes.remove(doc.seq);
+            }
+            doc.update(body);
+            doc.seq = ++seq;
+            changes.put(doc.seq, doc);
+            notifyAll();
+            return doc.rev();
+        }
+
+        public synchronized boolean delete(final String id) {
+            final StubDocument doc = docs.get(id);
+            if (doc == null || doc.deleted) {
+                return false;
+            }
+            changes.remove(doc.seq);
+            doc.delete();
+            doc.seq = ++seq;
+            changes.put(doc.seq, doc);
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * Puts documents first (inclusive) to last (exclusive) of the
+         * generator.
+         */
+        public void generate(final DocumentGenerator generator, final int first, final int last)
+                throws JSONException {
+            for (int i = first; i < last; i++) {
+                put(generator.generate(i));
+            }
+        }
+
+        private synchronized JSONObject get(final String id) throws JSONException {
+            final StubDocument doc = docs.get(id);
+            return doc == null || doc.deleted ? null : doc.toJSON();
+        }
+
+        private synchronized Attachment getAttachment(final String id, final String name) {
+            final StubDocument doc = docs.get(id);
+            return doc == null || doc.deleted ? null : doc.attachments.get(name);
+        }
+
+        private synchronized List<JSONObject> changesSince(final long since, final boolean includeDocs,
+                                                           final boolean descending, final int limit)
+                throws JSONException {
+            final List<JSONObject> result = new ArrayList<>();
+            final Collection<StubDocument> range = changes.tailMap(since + 1).values();
+            final List<StubDocument> ordered = new ArrayList<>(range);
+            if (descending) {
+                Collections.reverse(ordered);
+            }
+            for (final StubDocument doc : ordered) {
+                if (limit >= 0 && result.size() >= limit) {
+                    break;
+                }
+                result.add(doc.toChange(includeDocs));
+            }
+            return result;
+        }
+
+        private synchronized List<JSONObject> allDocs(final String startkey, final String endkey,
+                                                      final boolean includeDocs) throws JSONException {
+            final List<JSONObject> result = new ArrayList<>();
+            final SortedMap<String, StubDocument> range;
+            if (startkey != null && endkey != null) {
+                range = docs.subMap(startkey, endkey + "\0");
+            } else if (startkey != null) {
+                range = docs.tailMap(startkey);
+            } else if (endkey != null) {
+                range = docs.headMap(endkey + "\0");
+            } else {
+                range = docs;
+            }
+            for (final StubDocument doc : range.values()) {
+                if (!doc.deleted) {
+                    result.add(doc.toRow(includeDocs));
+                }
+            }
+            return result;
+        }
+
+        private synchronized JSONObject row(final String id, final boolean includeDocs) throws JSONException {
+            final StubDocument doc = docs.get(id);
+            if (doc == null) {
+                final JSONObject result = new JSONObject();
+                result.put("key", id);
+                result.put("error", "not_found");
+                return result;
+            }
+            return doc.toRow(includeDocs);
+        }
+
+        /**
+         * Waits up to the given number of milliseconds for a change after
+         * since, returning true if there is one.
+         */
+        private synchronized boolean awaitChange(final long since, final long millis) throws InterruptedException {
+            if (seq <= since) {
+                wait(millis);
+            }
+            return seq > since;
+        }
+
+        private synchronized void wakeUp() {
+            notifyAll();
+        }
+
+    }
+
+    private static final class Attachment {
+
+        private final String contentType;
+
+        private final byte[] data;
+
+        private Attachment(final String contentType, final byte[] data) {
+            this.contentType = contentType;
+            this.data = data;
+        }
+
+    }
+
+    private static final class StubDocument {
+
+        private final String id;
+
+        private final Map<String, Attachment> attachments = new LinkedHashMap<>();
+
+        private JSONObject body;
+
+        private int generation;
+
+        private boolean deleted;
+
+        private long seq;
+
+        private StubDocument(final String id) {
+            this.id = id;
+        }
+
+        private void update(final JSONObject json) throws JSONException {
+            body = new JSONObject(json.toString());
+            body.remove("_rev");
+            final JSONObject inline = (JSONObject) body.remove("_attachments");
+            attachments.clear();
+            if (inline != null) {
+                final Iterator<?> it = inline.keys();
+                while (it.hasNext()) {
+                    final String name = (String) it.next();
+                    final JSONObject att = inline.getJSONObject(name);
+                    attachments.put(name, new Attachment(
+                            att.optString("content_type", "application/octet-stream"),
+                            Base64.decodeBase64(att.getString("data"))));
+                }
+            }
+            deleted = false;
+            generation++;
+        }
+
+        private void delete() {
+            body = new JSONObject();
+            attachments.clear();
+            deleted = true;
+            generation++;
+        }
+
+        private String rev() {
+            return generation + "-" + Integer.toHexString((id + generation).hashCode());
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            final JSONObject result = new JSONObject(body.toString());
+            result.put("_id", id);
+            result.put("_rev", rev());
+            if (deleted) {
+                result.put("_deleted", true);
+            }
+            if (!attachments.isEmpty()) {
+                final JSONObject stubs = new JSONObject();
+                for (final Entry<String, Attachment> entry : attachments.entrySet()) {
+                    final JSONObject stub = new JSONObject();
+                    stub.put("content_type", entry.getValue().contentType);
+                    stub.put("length", entry.getValue().data.length);
+                    stub.put("stub", true);
+                    stubs.put(entry.getKey(), stub);
+                }
+                result.put("_attachments", stubs);
+            }
+            return result;
+        }
+
+        private JSONObject toChange(final boolean includeDoc) throws JSONException {
+            final JSONObject result = new JSONObject();
+            result.put("seq", seq);
+            result.put("id", id);
+            result.put("changes", new JSONArray().put(new JSONObject().put("rev", rev())));
+            if (deleted) {
+                result.put("deleted", true);
+            }
+            if (includeDoc) {
+                result.put("doc", toJSON());
+            }
+            return result;
+        }
+
+        private JSONObject toRow(final boolean includeDoc) throws JSONException {
+            final JSONObject result = new JSONObject();
+            result.put("id", id);
+            result.put("key", id);
+            final JSONObject value = new JSONObject().put("rev", rev());
+            if (deleted) {
+                value.put("deleted", true);
+            }
+            result.put("value", value);
+            if (includeDoc) {
+                result.put("doc", deleted ? JSONObject.NULL : toJSON());
+            }
+            return result;
+        }
+
+    }
+
+    private final class StubServlet extends HttpServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void service(final HttpServletRequest req, final HttpServletResponse resp) throws IOException {
+            try {
+                handle(req, resp);
+            } catch (final JSONException e) {
+                send(resp, 500, "{\"error\":\"bad_request\",\"reason\":\"invalid json\"}");
+            }
+        }
+
+        private void handle(final HttpServletRequest req, final HttpServletResponse resp)
+                throws IOException, JSONException {
+            final List<String> path = path(req);
+            final String method = req.getMethod();
+
+            if (path.isEmpty()) {
+                count("welcome");
+                send(resp, 200, new JSONObject().put("couchdb", "Welcome").put("version", "1.6.1"));
+                return;
+            }
+
+            if (path.size() == 1 && "_all_dbs".equals(path.get(0))) {
+                count("all_dbs");
+                send(resp, 200, new JSONArray(new TreeSet<>(databases.keySet())).toString());
+                return;
+            }
+
+            final String dbName = path.get(0);
+            if (path.size() == 1) {
+                count("db");
+                if ("PUT".equals(method)) {
+                    if (databases.containsKey(dbName)) {
+                        send(resp, 412, error("file_exists", "The database could not be created."));
+                    } else {
+                        createDatabase(dbName);
+                        send(resp, 201, new JSONObject().put("ok", true));
+                    }
+                    return;
+                }
+                if ("DELETE".equals(method)) {
+                    final StubDatabase db = databases.remove(dbName);
+                    if (db != null) {
+                        db.wakeUp();
+                    }
+                    send(resp, db == null ? 404 : 200, db == null ? notFound() : new JSONObject().put("ok", true));
+                    return;
+                }
+            }
+
+            final StubDatabase db = databases.get(dbName);
+            if (db == null) {
+                send(resp, 404, notFound());
+                return;
+            }
+
+            if (path.size() == 1) {
+                final JSONObject info = new JSONObject();
+                info.put("db_name", db.getName());
+                info.put("doc_count", db.getDocCount());
+                info.put("update_seq", db.getUpdateSequence());
+                send(resp, 200, info);
+                return;
+            }
+
+            final String first = path.get(1);
+            if ("_changes".equals(first)) {
+                count("changes");
+                changes(db, req, resp);
+                return;
+            }
+            if ("_all_docs".equals(first)) {
+                count("all_docs");
+                allDocs(db, req, resp);
+                return;
+            }
+
+            // Document ids may arrive with their slash encoded or not.
+            final String id;
+            final int rest;
+            if (("_design".equals(first) || "_local".equals(first)) && path.size() > 2) {
+                id = first + "/" + path.get(2);
+                rest = 3;
+            } else {
+                id = first;
+                rest = 2;
+            }
+
+            if (id.startsWith("_local/")) {
+                count("local");
+                local(db, id, req, resp);
+                return;
+            }
+
+            if (path.size() == rest + 1) {
+                count("attachment");
+                final Attachment att = db.getAttachment(id, path.get(rest));
+                if (att == null) {
+                    send(resp, 404, notFound());
+                    return;
+                }
+                resp.setStatus(200);
+                resp.setContentType(att.contentType);
+                resp.setContentLength(att.data.length);
+                resp.getOutputStream().write(att.data);
+                return;
+            }
+
+            count("doc");
+            switch (method) {
+                case "GET":
+                    final JSONObject doc = db.get(id);
+                    send(resp, doc == null ? 404 : 200, doc == null ? notFound() : doc);
+                    return;
+                case "PUT":
+                    final JSONObject body = new JSONObject(IOUtils.toString(req.getInputStream(), "UTF-8"));
+                    body.put("_id", id);
+                    send(resp, 201, new JSONObject().put("ok", true).put("id", id).put("rev", db.put(body)));
+                    return;
+                case "DELETE":
+                    final boolean deleted = db.delete(id);
+                    send(resp, deleted ? 200 : 404, deleted ? new JSONObject().put("ok", true) : notFound());
+                    return;
+                default:
+                    send(resp, 405, error("method_not_allowed", method));
+            }
+        }
+
+        private void local(final StubDatabase db, final String id, final HttpServletRequest req,
+                           final HttpServletResponse resp) throws IOException, JSONException {
+            synchronized (db) {
+                if ("PUT".equals(req.getMethod())) {
+                    final JSONObject body = new JSONObject(IOUtils.toString(req.getInputStream(), "UTF-8"));
+                    body.put("_id", id);
+                    body.put("_rev", "0-1");
+                    db.locals.put(id, body);
+                    send(resp, 201, new JSONObject().put("ok", true).put("id", id).put("rev", "0-1"));
+                    return;
+                }
+                final JSONObject doc = db.locals.get(id);
+                send(resp, doc == null ? 404 : 200, doc == null ? notFound() : doc);
+            }
+        }
+
+        private void allDocs(final StubDatabase db, final HttpServletRequest req, final HttpServletResponse resp)
+                throws IOException, JSONException {
+            final boolean includeDocs = Boolean.parseBoolean(req.getParameter("include_docs"));
+            final JSONArray rows = new JSONArray();
+            if ("POST".equals(req.getMethod())) {
+                final JSONArray keys = new JSONObject(IOUtils.toString(req.getInputStream(), "UTF-8"))
+                        .getJSONArray("keys");
+                for (int i = 0; i < keys.length(); i++) {
+                    rows.put(db.row(keys.getString(i), includeDocs));
+                }
+            } else {
+                for (final JSONObject row : db.allDocs(jsonString(req.getParameter("startkey")),
+                        jsonString(req.getParameter("endkey")), includeDocs)) {
+                    rows.put(row);
+                }
+            }
+            final JSONObject result = new JSONObject();
+            result.put("total_rows", db.getDocCount());
+            result.put("offset", 0);
+            result.put("rows", rows);
+            send(resp, 200, result);
+        }
+
+        private void changes(final StubDatabase db, final HttpServletRequest req, final HttpServletResponse resp)
+                throws IOException, JSONException {
+            final boolean includeDocs = Boolean.parseBoolean(req.getParameter("include_docs"));
+            final boolean descending = Boolean.parseBoolean(req.getParameter("descending"));
+            final int limit = (int) longParameter(req, "limit", -1);
+            long since = longParameter(req, "since", 0);
+
+            if (!"continuous".equals(req.getParameter("feed"))) {
+                final List<JSONObject> results = db.changesSince(descending ? 0 : since, includeDocs, descending, limit);
+                final long lastSeq = results.isEmpty()
+                        ? (descending ? db.getUpdateSequence() : since)
+                        : results.get(results.size() - 1).getLong("seq");
+                send(resp, 200, new JSONObject().put("results", new JSONArray(results)).put("last_seq", lastSeq));
+                return;
+            }
+
+            final long heartbeat = longParameter(req, "heartbeat", 60000);
+            final long timeout = longParameter(req, "timeout", -1);
+            resp.setStatus(200);
+            resp.setContentType("application/json");
+            final OutputStream out = resp.getOutputStream();
+            long idleSince = System.currentTimeMillis();
+            try {
+                while (!stopped && databases.get(db.getName()) == db) {
+                    final List<JSONObject> results = db.changesSince(since, includeDocs, false, -1);
+                    for (final JSONObject change : results) {
+                        out.write((change.toString() + "\n").getBytes("UTF-8"));
+                        since = change.getLong("seq");
+                    }
+                    if (!results.isEmpty()) {
+                        out.flush();
+                        idleSince = System.currentTimeMillis();
+                        continue;
+                    }
+                    final long wait = timeout < 0 ? heartbeat
+                            : Math.min(heartbeat, idleSince + timeout - System.currentTimeMillis());
+                    if (wait <= 0 || !db.awaitChange(since, wait)) {
+                        if (timeout >= 0 && System.currentTimeMillis() - idleSince >= timeout) {
+                            out.write((new JSONObject().put("last_seq", since).toString() + "\n").getBytes("UTF-8"));
+                            out.flush();
+                            return;
+                        }
+                        out.write('\n');
+                        out.flush();
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final IOException e) {
+                // The client went away.
+            }
+        }
+
+        private void send(final HttpServletResponse resp, final int code, final JSONObject json) throws IOException {
+            send(resp, code, json.toString());
+        }
+
+        private void send(final HttpServletResponse resp, final int code, final String body) throws IOException {
+            final byte[] bytes = body.getBytes("UTF-8");
+            resp.setStatus(code);
+            resp.setContentType("application/json");
+            resp.setContentLength(bytes.length);
+            resp.getOutputStream().write(bytes);
+        }
+
+    }
+
+    private final Map<String, StubDatabase> databases = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    private final Server server = new Server();
+
+    private final SelectChannelConnector connector = new SelectChannelConnector();
+
+    private volatile boolean stopped;
+
+    /**
+     * Listens on the given port of localhost, or any free port for zero.
+     */
+    public StubCouch(final int port) {
+        connector.setHost("localhost");
+        connector.setPort(port);
+        server.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(server, "/",
+                ServletContextHandler.NO_SESSIONS | ServletContextHandler.NO_SECURITY);
+        context.addServlet(new ServletHolder(new StubServlet()), "/*");
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        stopped = true;
+        for (final StubDatabase db : databases.values()) {
+            db.wakeUp();
+        }
+        server.stop();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + connector.getLocalPort() + "/";
+    }
+
+    public StubDatabase createDatabase(final String name) {
+        final StubDatabase result = new StubDatabase(name);
+        databases.put(name, result);
+        return result;
+    }
+
+    public StubDatabase getDatabase(final String name) {
+        return databases.get(name);
+    }
+
+    /**
+     * How many requests reached the named endpoint (welcome, all_dbs, db,
+     * changes, all_docs, doc, local or attachment).
+     */
+    public long getRequestCount(final String endpoint) {
+        final AtomicLong result = requests.get(endpoint);
+        return result == null ? 0 : result.get();
+    }
+
+    private void count(final String endpoint) {
+        AtomicLong counter = requests.get(endpoint);
+        if (counter == null) {
+            synchronized (requests) {
+                counter = requests.get(endpoint);
+                if (counter == null) {
+                    counter = new AtomicLong();
+                    requests.put(endpoint, counter);
+                }
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static List<String> path(final HttpServletRequest req) throws IOException {
+        final List<String> result = new ArrayList<>();
+        for (final String segment : req.getRequestURI().split("/")) {
+            if (!segment.isEmpty()) {
+                result.add(URLDecoder.decode(segment, "UTF-8"));
+            }
+        }
+        return result;
+    }
+
+    private static String jsonString(final String value) throws JSONException {
+        return value == null ? null : new JSONArray("[" + value + "]").getString(0);
+    }
+
+    private static long longParameter(final HttpServletRequest req, final String name, final long defaultValue) {
+        final String value = req.getParameter(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private static JSONObject notFound() throws JSONException {
+        return error("not_found", "missing");
+    }
+
+    private static JSONObject error(final String error, final String reason) throws JSONException {
+        return new JSONObject().put("error", error).put("reason", reason);
+    }
+
+}
@@ -16,8 +16,19 @@
 
 package com.github.rnewson.couchdb.lucene.couchdb;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Test;
+import org.mozilla.javascript.Context;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class ViewTest {
 
@@ -34,4 +45,89 @@ public class ViewTest {
         new View(null, json);
     }
 
+    @Test
+    public void shards() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        final View unsharded = new View(null, json);
+        assertThat(unsharded.getShards(), is(1));
+        final String digest = unsharded.getDigest();
+
+        json.put("shards", 1);
+        assertThat(new View(null, json).getDigest(), is(digest));
+
+        json.put("shards", 4);
+        final View sharded = new View(null, json);
+        assertThat(sharded.getShards(), is(4));
+        assertThat(sharded.getDigest(), not(digest));
+    }
+
+    @Test
+    public void source() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        assertThat(new View(null, json).getSourcePaths(), is(nullValue()));
+        final String digest = new View(null, json).getDigest();
+
+        json.put("source", false);
+        assertThat(new View(null, json).getSourcePaths(), is(nullValue()));
+        assertThat(new View(null, json).getDigest(), is(digest));
+
+        json.put("source", true);
+        assertThat(new View(null, json).getSourcePaths().isEmpty(), is(true));
+        assertThat(new View(null, json).getDigest(), not(digest));
+
+        json.put("source", new JSONArray().put("title").put("author.name"));
+        assertThat(new View(null, json).getSourcePaths(), is(Arrays.asList("title", "author.name")));
+    }
+
+    @Test
+    public void designDocumentAnalyzers() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        json.put("analyzer", "folded");
+        final String digest = new View(null, json).getDigest();
+
+        final JSONObject analyzers = new JSONObject(
+                "{folded: {tokenizer: \"whitespace\", filters: [\"lowercase\", \"asciifolding\"]}}");
+        final View view = new View(null, json, analyzers);
+        assertThat(view.getDigest(), not(digest));
+        assertThat(view.getAnalyzer(), is(view.getAnalyzer("folded")));
+        // Searches can only name the chains of the design document.
+        try {
+            view.getAnalyzer("custom:" + analyzers.getJSONObject("folded"));
+            fail("a search built a custom analyzer");
+        } catch (final IllegalArgumentException e) {
+            // Expected.
+        }
+
+        final JSONObject changed = new JSONObject("{folded: {tokenizer: \"whitespace\"}}");
+        assertThat(new View(null, json, changed).getDigest(), not(view.getDigest()));
+
+        // Views using a built-in analyzer keep their digest.
+        json.put("analyzer", "standard");
+        assertThat(new View(null, json, analyzers).getDigest(), is(new View(null, json).getDigest()));
+    }
+
+    @Test
+    public void compiledOnce() throws Exception {
+        final JSONObject json = new JSONObject();
+        json.put("index", "function(doc) { return null; }");
+        json.put("defaults", new JSONObject("{store: \"yes\"}"));
+        final View view = new View("_design/a/b", json);
+        assertThat(view.getDefaultSettings(), sameInstance(view.getDefaultSettings()));
+        assertThat(view.getAnalyzer(), sameInstance(view.getAnalyzer()));
+
+        final Context context = Context.enter();
+        try {
+            assertThat(view.compileScript(context), sameInstance(view.compileScript(context)));
+        } finally {
+            Context.exit();
+        }
+
+        final View same = new View("_design/c/d", json);
+        assertThat(same, is(view));
+        assertThat(same.hashCode(), is(view.hashCode()));
+    }
+
 }
@@ -30,8 +30,11 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class AnalyzersTest {
 
@@ -88,6 +91,81 @@ public class AnalyzersTest {
         assertThat(analyze("classic", "foo@bar.com"), is(new String[]{"foo@bar.com"}));
     }
 
+    @Test
+    public void testShared() throws Exception {
+        assertThat(Analyzers.getAnalyzer("perfield:{age:\"keyword\"}"),
+                sameInstance(Analyzers.getAnalyzer("perfield:{age:\"keyword\"}")));
+        assertThat(Analyzers.getAnalyzer("standard"), sameInstance(Analyzers.getAnalyzer("standard")));
+    }
+
+    @Test
+    public void testRequestAnalyzers() throws Exception {
+        final String name = "perfield:{name:\"keyword\"}";
+        final Analyzer indexed = Analyzers.acquireAnalyzer(name);
+        try {
+            assertThat(Analyzers.getAnalyzer(name), sameInstance(indexed));
+
+            final Analyzer requested = Analyzers.getAnalyzer("ngram:{min:2,max:4}");
+            assertThat(Analyzers.getAnalyzer("ngram:{min:2,max:4}"), sameInstance(requested));
+            // Searches can not evict the analyzers of indexes.
+            for (int i = 0; i < 300; i++) {
+                Analyzers.getAnalyzer("ngram:{min:1,max:" + (i + 2) + "}");
+            }
+            assertThat(Analyzers.getAnalyzer(name), sameInstance(indexed));
+            assertThat(Analyzers.getAnalyzer("ngram:{min:2,max:4}"), not(sameInstance(requested)));
+        } finally {
+            Analyzers.releaseAnalyzer(name);
+        }
+    }
+
+    @Test
+    public void testReleasedWithLastIndex() throws Exception {
+        final String name = "custom:{\"tokenizer\":\"keyword\"}";
+        final Analyzer first = Analyzers.acquireAnalyzer(name);
+        assertThat(Analyzers.acquireAnalyzer(name), sameInstance(first));
+        Analyzers.releaseAnalyzer(name);
+        // Still held by the other index.
+        for (int i = 0; i < 300; i++) {
+            Analyzers.getAnalyzer("ngram:{min:1,max:" + (i + 2) + "}");
+        }
+        assertThat(Analyzers.getAnalyzer(name), sameInstance(first));
+        Analyzers.releaseAnalyzer(name);
+        for (int i = 0; i < 300; i++) {
+            Analyzers.getAnalyzer("ngram:{min:1,max:" + (i + 2) + "}");
+        }
+        assertThat(Analyzers.acquireAnalyzer(name), not(sameInstance(first)));
+        Analyzers.releaseAnalyzer(name);
+    }
+
+    @Test
+    public void testCustom() throws Exception {
+        final String custom = "custom:{\"char_filters\":[\"htmlstrip\"],\"tokenizer\":\"whitespace\","
+                + "\"filters\":[\"lowercase\",\"asciifolding\",{\"type\":\"edgengram\",\"maxGramSize\":\"3\"}]}";
+        assertThat(analyze(custom, "<b>Café</b> AU"), is(new String[]{"c", "ca", "caf", "a", "au"}));
+        // Token streams are reused.
+        assertThat(analyze(custom, "Ok"), is(new String[]{"o", "ok"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCustomUnknownFilter() throws Exception {
+        Analyzers.getAnalyzer("custom:{\"filters\":[\"nonesuch\"]}");
+    }
+
+    @Test
+    public void testRequestsCanNotBuildCustom() throws Exception {
+        final String[] names = {"custom:{\"tokenizer\":\"keyword\"}",
+                "perfield:{name:\"custom:{}\"}", "ngram:{analyzer:\"custom:{}\"}"};
+        for (final String name : names) {
+            try {
+                Analyzers.getRequestAnalyzer(name);
+                fail(name + " was built for a request");
+            } catch (final IllegalArgumentException e) {
+                assertThat(e.getMessage(), containsString("design documents"));
+            }
+        }
+        assertThat(Analyzers.getRequestAnalyzer("perfield:{name:\"keyword\"}"), is(PerFieldAnalyzerWrapper.class));
+    }
+
     private String[] analyze(final String analyzerName, final String text) throws Exception {
         final Analyzer analyzer = Analyzers.getAnalyzer(analyzerName);
         final TokenStream stream = analyzer.tokenStream("default", new StringReader(text));
@@ -97,6 +175,8 @@ public class AnalyzersTest {
             final CharTermAttribute c = stream.getAttribute(CharTermAttribute.class);
             result.add(c.toString());
         }
+        stream.end();
+        stream.close();
         return result.toArray(new String[0]);
     }
 }
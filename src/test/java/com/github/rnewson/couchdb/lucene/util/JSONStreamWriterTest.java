@@ -0,0 +1,85 @@
+/*
+ * Copyright Robert Newson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.rnewson.couchdb.lucene.util;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class JSONStreamWriterTest {
+
+    @Test
+    public void testCompact() throws Exception {
+        assertThat(write(0), is("{\"q\":\"foo \\\"bar\\\"\",\"total_rows\":2,"
+                + "\"rows\":[{\"id\":\"a\"},{\"id\":\"b\"}],\"empty\":[],\"fields\":[\"x\",1.5,null]}"));
+    }
+
+    @Test
+    public void testPrettyPrinted() throws Exception {
+        final String str = write(2);
+        assertThat(str.startsWith("{\n  \"q\": \"foo \\\"bar\\\"\",\n  \"total_rows\": 2,\n  \"rows\": [\n    {"),
+                is(true));
+        assertThat(str.endsWith("\n  ]\n}"), is(true));
+
+        final JSONObject json = new JSONObject(str);
+        assertThat(json.getInt("total_rows"), is(2));
+        assertThat(json.getJSONArray("rows").getJSONObject(1).getString("id"), is("b"));
+        assertThat(json.getJSONArray("empty").length(), is(0));
+        assertThat(json.getJSONArray("fields").isNull(2), is(true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testKeyOutsideObject() throws Exception {
+        new JSONStreamWriter(new StringWriter(), 0).array().key("oops");
+    }
+
+    @Test
+    public void testEndTo() throws Exception {
+        final StringWriter out = new StringWriter();
+        final JSONStreamWriter writer = new JSONStreamWriter(out, 0);
+        writer.object();
+        writer.key("rows").array();
+        writer.value(new JSONObject().put("id", "a"));
+        writer.object().key("doc");
+        writer.endTo(1);
+        writer.key("error").value("failed");
+        writer.endObject();
+        assertThat(out.toString(), is("{\"rows\":[{\"id\":\"a\"},{\"doc\":null}],\"error\":\"failed\"}"));
+    }
+
+    private String write(final int indentFactor) throws Exception {
+        final StringWriter out = new StringWriter();
+        final JSONStreamWriter writer = new JSONStreamWriter(out, indentFactor);
+        writer.object();
+        writer.key("q").value("foo \"bar\"");
+        writer.key("total_rows").value(2);
+        writer.key("rows").array();
+        writer.value(new JSONObject().put("id", "a"));
+        writer.value(new JSONObject().put("id", "b"));
+        writer.endArray();
+        writer.key("empty").array().endArray();
+        writer.key("fields").value(new JSONArray().put("x").put(1.5).put(JSONObject.NULL));
+        writer.endObject();
+        return out.toString();
+    }
+
+}